@@ -1,11 +1,64 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import javax.swing.*;
+import javax.swing.border.Border;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 // =====================================================
 // ABSTRACT CLASS - Person (Base class for all users)
@@ -105,230 +158,4707 @@ class Book implements Serializable {
     public int getStockQuantity() { return stockQuantity; }
     public void setStockQuantity(int stockQuantity) { this.stockQuantity = stockQuantity; }
 
+    // Changes each time the catalog record is updated; 0 for books not read from the catalog
+    public int getVersion() { return 0; }
+
+    // Convert to CSV line
+    public String toCSV() {
+        return CsvFile.quote(getBookId()) + "," + CsvFile.quote(getTitle()) + "," + CsvFile.quote(getAuthor()) + ","
+                + CsvFile.quote(getCategory()) + "," + getPrice() + "," + getStockQuantity();
+    }
+
+    public String toString() { return getTitle() + " by " + getAuthor(); }
+}
+
+// =====================================================
+// CATEGORY CLASS - Represents a book category
+// =====================================================
+class Category implements Serializable {
+    private String categoryId;
+    private String categoryName;
+    private String description;
+
+    public Category(String categoryId, String categoryName, String description) {
+        this.categoryId = categoryId;
+        this.categoryName = categoryName;
+        this.description = description;
+    }
+
+    // Getters and Setters
+    public String getCategoryId() { return categoryId; }
+    public void setCategoryId(String categoryId) { this.categoryId = categoryId; }
+    public String getCategoryName() { return categoryName; }
+    public void setCategoryName(String categoryName) { this.categoryName = categoryName; }
+    public String getDescription() { return description; }
+    public void setDescription(String description) { this.description = description; }
+
     // Convert to CSV line
     public String toCSV() {
-        return bookId + "," + title + "," + author + "," + category + "," + price + "," + stockQuantity;
+        return CsvFile.quote(categoryId) + "," + CsvFile.quote(categoryName) + "," + CsvFile.quote(description);
+    }
+
+    public String toString() { return categoryName; }
+}
+
+// =====================================================
+// SALE CLASS - One completed checkout (a receipt)
+// =====================================================
+class Sale implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String saleId;
+    private final String cashier;
+    private final long time;
+    private final List<SaleLine> lines;
+
+    public Sale(String saleId, String cashier, long time, List<SaleLine> lines) {
+        this.saleId = saleId;
+        this.cashier = cashier;
+        this.time = time;
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+    }
+
+    public String getSaleId() { return saleId; }
+    public String getCashier() { return cashier; }
+    public long getTime() { return time; }
+    public List<SaleLine> getLines() { return lines; }
+
+    public double getTotal() {
+        double total = 0;
+        for (SaleLine l : lines) total += l.getAmount();
+        return total;
+    }
+
+    // One CSV line per book sold
+    public List<String> toCSV() {
+        List<String> out = new ArrayList<>(lines.size());
+        for (SaleLine l : lines)
+            out.add(CsvFile.quote(saleId) + "," + time + "," + CsvFile.quote(cashier) + "," + CsvFile.quote(l.getBookId())
+                    + "," + l.getQuantity() + "," + l.getUnitPrice());
+        return out;
+    }
+}
+
+// One book on a receipt
+class SaleLine implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String bookId;
+    private final String title;
+    private final int quantity;
+    private final double unitPrice;
+    final transient int ordinal; // position in DataManager's catalog
+
+    SaleLine(String bookId, String title, int quantity, double unitPrice, int ordinal) {
+        this.bookId = bookId;
+        this.title = title;
+        this.quantity = quantity;
+        this.unitPrice = unitPrice;
+        this.ordinal = ordinal;
+    }
+
+    public String getBookId() { return bookId; }
+    public String getTitle() { return title; }
+    public int getQuantity() { return quantity; }
+    public double getUnitPrice() { return unitPrice; }
+    public double getAmount() { return unitPrice * quantity; }
+}
+
+// =====================================================
+// INTERFACE - Contract for file operations
+// =====================================================
+interface FileOperations {
+    void saveToFile();
+    void loadFromFile();
+    void checkpoint();
+}
+
+// =====================================================
+// INTERFACE - Contract for catalog operations
+// =====================================================
+// Everything the screens need; DataManager answers from memory and
+// RemoteDataManager forwards to a shared BookshopServer. The add methods
+// throw UncheckedIOException when the change was made but could not be saved.
+interface BookshopService {
+    Person authenticate(String username, String password);
+    boolean addUser(Person user);
+    List<Person> getAllUsers();
+
+    boolean addBook(Book book);
+    Book getBookById(String bookId);
+    List<Book> getAllBooks();
+    int indexOf(String bookId); // position in getAllBooks(), which never changes; -1 if unknown
+    String generateBookId();
+
+    boolean addCategory(Category cat);
+    List<Category> getAllCategories();
+    String generateCategoryId();
+
+    List<Book> searchByName(String name);
+    List<Book> searchText(String query);
+    List<Book> refineText(List<Book> previous, String previousQuery, long previousVersion, String query);
+    List<Book> searchFuzzy(String query);
+    List<Book> searchByCategory(String category);
+    List<Book> searchByPrice(double maxPrice);
+    List<Book> searchByStock(int minStock);
+    ResultPage page(BookQuery q, int offset, int limit);
+    long getCatalogVersion();
+    CatalogStats getStats();
+
+    int getLiveStock(String bookId);
+    Sale checkout(Person cashier, Map<String, Integer> cart);
+
+    // Batches of changes, delivered on the Swing event thread
+    void addCatalogListener(CatalogListener l);
+    void removeCatalogListener(CatalogListener l);
+
+    void close();
+}
+
+// =====================================================
+// CSV FILE - RFC-4180 reader that parses fields in place
+// =====================================================
+class CsvFile {
+    // Files at least this big are memory-mapped instead of read into the heap
+    static final long MAP_THRESHOLD = 1 << 20;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    // Files at least this big are cut into chunks that are parsed in parallel
+    static final long PARALLEL_THRESHOLD = 4 << 20;
+    static final int CHUNK_BYTES = 1 << 20;
+
+    // Read every row of a file; returns the number of rows handed to the handler
+    public static int read(File file, boolean skipHeader, RowHandler handler) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(load(ch), skipHeader, handler);
+        }
+    }
+
+    // Parse every row into a list in file order, skipping rows the parser
+    // returns null for. With 'parallel' set, a large file is split at record
+    // boundaries and the chunks are parsed on the fork/join pool, then joined
+    public static <T> List<T> readAll(File file, boolean skipHeader, boolean parallel, RowParser<T> parser)
+            throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = load(ch);
+            if (!parallel || buf.limit() < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2)
+                return parseChunk(buf, skipHeader, parser);
+
+            int[] cuts = splitPoints(buf, CHUNK_BYTES);
+            List<List<T>> parts = IntStream.range(0, cuts.length - 1).parallel()
+                    .mapToObj(i -> {
+                        ByteBuffer slice = buf.duplicate();
+                        slice.position(cuts[i]).limit(cuts[i + 1]);
+                        return parseChunk(slice, skipHeader && i == 0, parser);
+                    })
+                    .collect(Collectors.toList());
+
+            int total = 0;
+            for (List<T> part : parts) total += part.size();
+            List<T> result = new ArrayList<>(total);
+            for (List<T> part : parts) result.addAll(part);
+            return result;
+        }
+    }
+
+    private static <T> List<T> parseChunk(ByteBuffer buf, boolean skipHeader, RowParser<T> parser) {
+        List<T> out = new ArrayList<>();
+        read(buf, skipHeader, row -> {
+            T value = parser.parse(row);
+            if (value != null) out.add(value);
+        });
+        return out;
+    }
+
+    // Offsets of record starts roughly 'chunk' bytes apart, plus the end of the
+    // buffer. Quotes are tracked so a line break inside a quoted field is never a cut
+    private static int[] splitPoints(ByteBuffer buf, int chunk) {
+        List<Integer> cuts = new ArrayList<>();
+        int limit = buf.limit();
+        cuts.add(buf.position());
+        int next = buf.position() + chunk;
+        boolean inQuotes = false;
+        for (int i = buf.position(); i < limit; i++) {
+            byte c = buf.get(i);
+            if (c == '"') inQuotes = !inQuotes;
+            else if (c == '\n' && !inQuotes && i >= next && i + 1 < limit) {
+                cuts.add(i + 1);
+                next = i + 1 + chunk;
+            }
+        }
+        cuts.add(limit);
+        int[] result = new int[cuts.size()];
+        for (int i = 0; i < result.length; i++) result[i] = cuts.get(i);
+        return result;
+    }
+
+    // Map large files, read small ones into the heap
+    private static ByteBuffer load(FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size >= MAP_THRESHOLD) return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+        buf.flip();
+        return buf;
+    }
+
+    // Read every row between the buffer's position and limit
+    public static int read(ByteBuffer buf, boolean skipHeader, RowHandler handler) {
+        CsvRow row = new CsvRow(buf);
+        int count = 0;
+        boolean header = skipHeader;
+        while (row.next()) {
+            if (row.isBlank()) continue;
+            if (header) { header = false; continue; }
+            handler.row(row);
+            count++;
+        }
+        return count;
+    }
+
+    // Parse a single line held in a String (used for journal records)
+    public static CsvRow parseLine(String line) {
+        CsvRow row = new CsvRow(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        row.next();
+        return row;
+    }
+
+    // Quote a field only when it contains a comma, quote or line break
+    public static String quote(String field) {
+        if (field == null) return "";
+        boolean needs = false;
+        for (int i = 0; i < field.length() && !needs; i++) {
+            char c = field.charAt(i);
+            needs = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needs) return field;
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    static double pow10(int n) { return POW10[n]; }
+}
+
+// Callback for each parsed CSV row; the row object is reused between calls
+interface RowHandler {
+    void row(CsvRow row);
+}
+
+// Turns a CSV row into an object, or null to skip the row
+interface RowParser<T> {
+    T parse(CsvRow row);
+}
+
+// =====================================================
+// CSV ROW - Field offsets into the shared byte buffer
+// =====================================================
+class CsvRow {
+    private final ByteBuffer buf;
+    private int pos;
+    private int[] start = new int[8];
+    private int[] end = new int[8];
+    private boolean[] quoted = new boolean[8];
+    private int fields;
+    private byte[] scratch = new byte[256];
+
+    CsvRow(ByteBuffer buf) {
+        this.buf = buf;
+        this.pos = buf.position();
+    }
+
+    // Advance to the next record; false at end of input
+    boolean next() {
+        int limit = buf.limit();
+        if (pos >= limit) return false;
+        fields = 0;
+        while (true) {
+            if (fields == start.length) grow();
+            int i = pos;
+            boolean q = i < limit && buf.get(i) == '"';
+            int s, e;
+            if (q) {
+                s = ++i;
+                while (i < limit) {
+                    if (buf.get(i) == '"') {
+                        if (i + 1 < limit && buf.get(i + 1) == '"') i += 2; // escaped quote
+                        else break;
+                    } else i++;
+                }
+                e = i;
+                if (i < limit) i++; // closing quote
+                // anything between the closing quote and the delimiter is ignored
+                while (i < limit && buf.get(i) != ',' && buf.get(i) != '\n') i++;
+            } else {
+                s = i;
+                while (i < limit && buf.get(i) != ',' && buf.get(i) != '\n') i++;
+                e = i;
+                if (e > s && buf.get(e - 1) == '\r') e--;
+            }
+            start[fields] = s;
+            end[fields] = e;
+            quoted[fields] = q;
+            fields++;
+            if (i < limit && buf.get(i) == ',') { pos = i + 1; continue; }
+            pos = i < limit ? i + 1 : limit; // consume the newline
+            return true;
+        }
+    }
+
+    private void grow() {
+        int n = start.length * 2;
+        start = Arrays.copyOf(start, n);
+        end = Arrays.copyOf(end, n);
+        quoted = Arrays.copyOf(quoted, n);
+    }
+
+    public int size() { return fields; }
+
+    boolean isBlank() {
+        if (fields != 1 || quoted[0]) return false;
+        for (int i = start[0]; i < end[0]; i++)
+            if (!Character.isWhitespace(buf.get(i))) return false;
+        return true;
+    }
+
+    // Decode a field to a String (the only per-field allocation)
+    public String getString(int f) {
+        int len = end[f] - start[f];
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        for (int i = 0; i < len; i++) scratch[i] = buf.get(start[f] + i);
+        String s = new String(scratch, 0, len, StandardCharsets.UTF_8);
+        return quoted[f] ? s.replace("\"\"", "\"") : s;
+    }
+
+    // Parse an int directly from the bytes
+    public int getInt(int f) {
+        int i = skipSpace(start[f], end[f]), e = trimSpace(i, end[f]);
+        if (i == e) throw new NumberFormatException("empty number in field " + f);
+        boolean neg = buf.get(i) == '-';
+        if (neg || buf.get(i) == '+') i++;
+        if (i == e) throw new NumberFormatException(getString(f));
+        long v = 0;
+        for (; i < e; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException(getString(f));
+            v = v * 10 + d;
+            if (v > (long) Integer.MAX_VALUE + 1) throw new NumberFormatException(getString(f));
+        }
+        if (neg) v = -v;
+        if (v > Integer.MAX_VALUE) throw new NumberFormatException(getString(f));
+        return (int) v;
+    }
+
+    // Parse plain decimals ("1500.0") from the bytes; anything unusual
+    // (exponents, very long mantissas) falls back to Double.parseDouble
+    public double getDouble(int f) {
+        int i = skipSpace(start[f], end[f]), e = trimSpace(i, end[f]);
+        if (i == e) throw new NumberFormatException("empty number in field " + f);
+        boolean neg = buf.get(i) == '-';
+        if (neg || buf.get(i) == '+') i++;
+        long mantissa = 0;
+        int digits = 0, scale = -1;
+        for (; i < e; i++) {
+            byte c = buf.get(i);
+            if (c == '.' && scale < 0) { scale = 0; continue; }
+            int d = c - '0';
+            if (d < 0 || d > 9 || digits >= 18) return Double.parseDouble(getString(f).trim());
+            mantissa = mantissa * 10 + d;
+            digits++;
+            if (scale >= 0) scale++;
+        }
+        if (digits == 0) throw new NumberFormatException(getString(f));
+        if (scale < 0) scale = 0;
+        // exact only while both operands are exactly representable doubles
+        if (mantissa >= (1L << 53) || scale > 22) return Double.parseDouble(getString(f).trim());
+        double v = mantissa / CsvFile.pow10(scale);
+        return neg ? -v : v;
+    }
+
+    private int skipSpace(int i, int e) {
+        while (i < e && buf.get(i) == ' ') i++;
+        return i;
+    }
+
+    private int trimSpace(int s, int e) {
+        while (e > s && buf.get(e - 1) == ' ') e--;
+        return e;
+    }
+}
+
+// =====================================================
+// SNAPSHOT FILE - Versioned binary image of all data
+// =====================================================
+// Layout (big-endian, strings are int length + UTF-8 bytes):
+//   magic, version, length of the sales ledger already applied to the
+//   stock (long; not in version 1), user count, users, category count, categories,
+//   category-name dictionary, author dictionary, book count,
+//   then one column each for id, title, author code, category code,
+//   price (double) and stock (int), and a CRC32 of everything before it.
+class SnapshotFile {
+    static final int MAGIC = 0x43425350; // "CBSP"
+    static final int VERSION = 2;
+
+    // Flushes but does not close 'sink'
+    public static void write(OutputStream sink, List<Person> users, List<Category> categories, List<Book> books,
+                             long ledgerLength) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(sink, crc), 1 << 16));
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(ledgerLength);
+
+            out.writeInt(users.size());
+            for (Person u : users) {
+                out.writeBoolean(u instanceof Manager);
+                writeString(out, u.getUsername());
+                writeString(out, u.getPassword());
+                writeString(out, u.getFullName());
+            }
+
+            out.writeInt(categories.size());
+            for (Category c : categories) {
+                writeString(out, c.getCategoryId());
+                writeString(out, c.getCategoryName());
+                writeString(out, c.getDescription());
+            }
+
+            // Dictionary-encode the repetitive book columns
+            Map<String, Integer> catCodes = new LinkedHashMap<>();
+            Map<String, Integer> authorCodes = new LinkedHashMap<>();
+            int n = books.size();
+            int[] catCol = new int[n], authorCol = new int[n];
+            for (int i = 0; i < n; i++) {
+                Book b = books.get(i);
+                catCol[i] = catCodes.computeIfAbsent(b.getCategory(), k -> catCodes.size());
+                authorCol[i] = authorCodes.computeIfAbsent(b.getAuthor(), k -> authorCodes.size());
+            }
+            writeDictionary(out, catCodes.keySet());
+            writeDictionary(out, authorCodes.keySet());
+
+            out.writeInt(n);
+            for (Book b : books) writeString(out, b.getBookId());
+            for (Book b : books) writeString(out, b.getTitle());
+            for (int i = 0; i < n; i++) out.writeInt(authorCol[i]);
+            for (int i = 0; i < n; i++) out.writeInt(catCol[i]);
+            for (Book b : books) out.writeDouble(b.getPrice());
+            for (Book b : books) out.writeInt(b.getStockQuantity());
+
+            out.flush();
+            out.writeLong(crc.getValue()); // not part of the checksum
+            out.flush();
+        }
+    }
+
+    // Fill the lists, and ledgerLength[0] (-1 for a version 1 snapshot), from
+    // the snapshot; returns false (nothing filled) when the file is missing,
+    // from an unknown version, truncated or corrupt
+    public static boolean read(File file, List<Person> users, List<Category> categories, List<Book> books,
+                               long[] ledgerLength) {
+        if (!file.exists()) return false;
+        List<Person> u = new ArrayList<>();
+        List<Category> c = new ArrayList<>();
+        List<Book> b;
+        long ledger;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // One sequential mapping of the whole file, verified before decoding
+            ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (in.limit() < 16) return false;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = in.duplicate();
+            body.limit(in.limit() - 8);
+            crc.update(body);
+            if (in.getLong(in.limit() - 8) != crc.getValue()) return false;
+            if (in.getInt() != MAGIC) return false;
+            int version = in.getInt();
+            if (version != 1 && version != VERSION) return false;
+            ledger = version == 1 ? -1 : in.getLong();
+
+            byte[] scratch = new byte[256];
+            int userCount = in.getInt();
+            for (int i = 0; i < userCount; i++) {
+                boolean manager = in.get() != 0;
+                String name = readString(in, scratch), pass = readString(in, scratch), full = readString(in, scratch);
+                u.add(manager ? new Manager(name, pass, full) : new Cashier(name, pass, full));
+            }
+
+            int catCount = in.getInt();
+            for (int i = 0; i < catCount; i++)
+                c.add(new Category(readString(in, scratch), readString(in, scratch), readString(in, scratch)));
+
+            String[] catDict = readDictionary(in, scratch);
+            String[] authorDict = readDictionary(in, scratch);
+
+            int n = in.getInt();
+            String[] ids = new String[n], titles = new String[n];
+            for (int i = 0; i < n; i++) ids[i] = readString(in, scratch);
+            for (int i = 0; i < n; i++) titles[i] = readString(in, scratch);
+            int[] authorCol = new int[n], catCol = new int[n], stock = new int[n];
+            double[] price = new double[n];
+            in.asIntBuffer().get(authorCol);
+            in.position(in.position() + 4 * n);
+            in.asIntBuffer().get(catCol);
+            in.position(in.position() + 4 * n);
+            in.asDoubleBuffer().get(price);
+            in.position(in.position() + 8 * n);
+            in.asIntBuffer().get(stock);
+
+            b = new ArrayList<>(n);
+            for (int i = 0; i < n; i++)
+                b.add(new Book(ids[i], titles[i], authorDict[authorCol[i]], catDict[catCol[i]], price[i], stock[i]));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable snapshot: " + e);
+            return false;
+        }
+        users.addAll(u);
+        categories.addAll(c);
+        books.addAll(b);
+        ledgerLength[0] = ledger;
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in, byte[] scratch) {
+        int len = in.getInt();
+        if (len < 0 || len > in.remaining()) throw new IllegalStateException("bad string length " + len);
+        byte[] bytes = len <= scratch.length ? scratch : new byte[len];
+        in.get(bytes, 0, len);
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDictionary(DataOutputStream out, Collection<String> words) throws IOException {
+        out.writeInt(words.size());
+        for (String w : words) writeString(out, w);
+    }
+
+    private static String[] readDictionary(ByteBuffer in, byte[] scratch) {
+        String[] words = new String[in.getInt()];
+        for (int i = 0; i < words.length; i++) words[i] = readString(in, scratch);
+        return words;
+    }
+}
+
+// =====================================================
+// ATOMIC FILES - Durable replace via temp file + rename
+// =====================================================
+class AtomicFiles {
+    // Writes into the stream it is given; must flush but not close it
+    interface Body {
+        void write(OutputStream out) throws IOException;
+    }
+
+    // Write to "<target>.tmp", fsync it, then rename it over the target so
+    // readers see either the old file or the complete new one
+    public static void write(File target, Body body) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            body.write(fos);
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
+
+// =====================================================
+// WRITE-BEHIND FLUSHER - Coalesces saves on a background thread
+// =====================================================
+class WriteBehindFlusher {
+    // One durable save of the current state
+    interface Save {
+        void run() throws IOException;
+    }
+
+    private final Save writer;
+    private final long windowMillis;
+    private final Thread thread;
+
+    // Guarded by 'this'
+    private long requested = 0;   // bumped by every markDirty()
+    private long written = 0;     // highest request covered by a finished write
+    private long dirtySince = 0;  // when the oldest unwritten change arrived
+    private boolean urgent = false, running = true;
+    private long attempts = 0;         // finished saves, successful or not
+    private IOException failure;       // why the last save failed, null once one succeeds
+
+    // A failed save leaves its changes dirty; it is retried after another
+    // window, or at once by flush()
+    public WriteBehindFlusher(Save writer, long windowMillis) {
+        this.writer = writer;
+        this.windowMillis = windowMillis;
+        this.thread = new Thread(this::run, "write-behind-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Called after every change; returns immediately
+    public synchronized void markDirty() {
+        if (requested == written) {
+            dirtySince = System.currentTimeMillis();
+            notifyAll(); // only the first change of a batch needs to wake the thread
+        }
+        requested++;
+    }
+
+    // Block until everything marked dirty so far is on disk; throws if a
+    // save tried after this call failed, as those changes are not durable
+    public synchronized void flush() throws IOException {
+        long target = requested, since = attempts;
+        urgent = true;
+        notifyAll();
+        while (written < target && thread.isAlive()) {
+            if (failure != null && attempts > since) throw failure;
+            try { wait(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+        }
+        if (written < target) throw new IOException("background saves stopped with unsaved changes");
+    }
+
+    // Final flush, then stop the thread (also when the flush failed)
+    public void close() throws IOException {
+        try { flush(); }
+        finally {
+            synchronized (this) { running = false; notifyAll(); }
+            try { thread.join(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long batch;
+            synchronized (this) {
+                // Sleep until there is work, then let the window fill up
+                while (running && requested == written) waitQuietly(0);
+                if (requested == written) return;
+                long due = dirtySince + windowMillis;
+                while (running && !urgent && System.currentTimeMillis() < due)
+                    waitQuietly(due - System.currentTimeMillis());
+                batch = requested;
+                urgent = false;
+            }
+            IOException error = null;
+            try { writer.run(); }
+            catch (IOException e) { error = e; }
+            catch (RuntimeException e) { error = new IOException(e.getMessage(), e); }
+            synchronized (this) {
+                attempts++;
+                failure = error;
+                if (error == null) written = batch;
+                else System.out.println("Error in background save: " + error.getMessage());
+                if (requested != written) dirtySince = System.currentTimeMillis();
+                notifyAll();
+                if (error != null && !running) return; // closing; the caller saves directly
+            }
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try { wait(Math.max(0, millis)); }
+        catch (InterruptedException e) { running = false; }
+    }
+}
+
+// =====================================================
+// JOURNAL - Append-only log of changes since last save
+// =====================================================
+// Records are queued in the order the changes were made (callers append
+// while they hold the catalog's write lock) and made durable by sync(),
+// which callers run after letting go of that lock. Writers that sync at
+// the same time share one fsync.
+class Journal {
+    private final File file, rotated;
+    private final Object syncLock = new Object(); // one fsync at a time; taken before 'this'
+    private long settled = 0; // records known to be on disk or lost (guarded by syncLock)
+
+    // Guarded by 'this'
+    private FileOutputStream out;
+    private Writer writer;
+    private int records = 0;     // in the current file
+    private long appended = 0;   // every record so far; a record's number is its place in this count
+    private long goodRecords = 0, goodLength = 0; // what the last successful fsync covered
+    private final TreeMap<Long, Long> lost = new TreeMap<>(); // records after key, up to value
+    private IOException failure;
+
+    public Journal(String fileName) {
+        this.file = new File(fileName);
+        this.rotated = new File(fileName + ".old");
+    }
+
+    // Queue one record ("TYPE,csv fields"); returns the number to pass to sync()
+    public synchronized long append(String type, String record) {
+        return appendAll(type, Collections.singletonList(record));
+    }
+
+    // Queue several records of one type; returns the last one's number
+    public synchronized long appendAll(String type, List<String> batch) {
+        appended += batch.size();
+        records += batch.size();
+        try {
+            open();
+            for (String record : batch) writer.write(type + "," + record + System.lineSeparator());
+        } catch (IOException e) { fail(e); }
+        return appended;
+    }
+
+    // Block until record 'upTo' and all before it are on disk. Throws
+    // UncheckedIOException if they could not be written; the file is then
+    // cut back to the last good fsync, so every record queued after that
+    // fails with them.
+    public void sync(long upTo) {
+        synchronized (syncLock) {
+            if (upTo > settled) flushAndSync();
+        }
+        synchronized (this) {
+            Map.Entry<Long, Long> range = lost.lowerEntry(upTo);
+            if (range != null && upTo <= range.getValue())
+                throw new UncheckedIOException("Could not write the journal: " + failure.getMessage(), failure);
+        }
+    }
+
+    // Write out and fsync everything queued so far (caller holds syncLock).
+    // The fsync runs without 'this', so appends carry on meanwhile.
+    private void flushAndSync() {
+        FileOutputStream o;
+        long target, length;
+        synchronized (this) {
+            target = appended;
+            o = out;
+            try {
+                if (writer != null) writer.flush();
+                length = o == null ? goodLength : o.getChannel().size();
+            } catch (IOException e) {
+                fail(e);
+                settled = target;
+                return;
+            }
+        }
+        try {
+            if (o != null) o.getFD().sync();
+            synchronized (this) {
+                if (out == o) { goodRecords = target; goodLength = length; }
+            }
+        } catch (IOException e) {
+            synchronized (this) { if (out == o) fail(e); }
+        }
+        settled = target;
+    }
+
+    // Everything after the last good fsync is lost: cut the file back to it
+    // and drop the open file without flushing what is still buffered
+    private void fail(IOException e) {
+        failure = e;
+        lost.put(goodRecords, appended);
+        try {
+            if (out != null) out.getChannel().truncate(goodLength);
+        } catch (IOException t) { System.out.println("Error repairing journal: " + t.getMessage()); }
+        try { if (out != null) out.close(); }
+        catch (IOException t) { System.out.println("Error closing journal: " + t.getMessage()); }
+        writer = null;
+        out = null;
+    }
+
+    // Feed every record back as (type, row), oldest first; the type is field 0.
+    // A rotated file left by an unfinished compaction comes first.
+    public int replay(JournalHandler handler) {
+        int count = 0;
+        for (File f : new File[]{rotated, file}) {
+            if (!f.exists()) continue;
+            try {
+                count += CsvFile.read(f, false, row -> handler.apply(row.getString(0), row));
+            } catch (IOException e) { System.out.println("Error reading journal: " + e.getMessage()); }
+        }
+        records = count;
+        return count;
+    }
+
+    // Open for appending on first use; UTF-8 to match how replay() reads it
+    private void open() throws IOException {
+        if (writer != null) return;
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    // Start a new file; the records so far move to "<file>.old" until
+    // dropRotated() is called once they are part of a full save. If an
+    // earlier rotated file was never dropped, they are added to the end of it.
+    // Records that could not be written are still reported by sync().
+    public void rotate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                flushAndSync();
+                close();
+                records = 0;
+                goodRecords = appended;
+                goodLength = file.length(); // kept if the move fails
+                if (!file.exists()) return;
+                if (!rotated.exists()) {
+                    Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    try (FileOutputStream old = new FileOutputStream(rotated, true)) {
+                        Files.copy(file.toPath(), old);
+                        old.getFD().sync();
+                    }
+                    Files.delete(file.toPath());
+                }
+                goodLength = 0;
+            }
+        }
+    }
+
+    public void dropRotated() {
+        if (rotated.exists() && !rotated.delete())
+            System.out.println("Error clearing journal: could not delete " + rotated);
+    }
+
+    public synchronized void close() {
+        try { if (writer != null) writer.close(); }
+        catch (IOException e) { System.out.println("Error closing journal: " + e.getMessage()); }
+        writer = null;
+        out = null;
+    }
+
+    public synchronized int size() { return records; }
+}
+
+// Callback used when replaying the journal
+interface JournalHandler {
+    void apply(String type, CsvRow row);
+}
+
+// =====================================================
+// SALES LOG - Permanent ledger of sales, written in batches
+// =====================================================
+// Tills hand sales over through a lock-free queue and wait for their
+// batch. A single thread drains whatever has queued up, appends it to the
+// ledger with one fsync per batch (group commit), passes the batch and the
+// ledger's new length on so the catalog can apply the stock changes, then
+// releases the tills. A
+// batch that cannot be written is cut back out of the ledger and never
+// applied; its tills get the error.
+class SalesLog {
+    private static final class Pending {
+        final Sale sale;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(Sale sale) { this.sale = sale; }
+    }
+
+    private final File file;
+    private final ObjLongConsumer<List<Sale>> onWritten;
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextNumber;
+    private final AtomicLong recorded = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long written = 0; // guarded by 'this'
+
+    public SalesLog(String fileName, ObjLongConsumer<List<Sale>> onWritten) {
+        this.file = new File(fileName);
+        this.onWritten = onWritten;
+        this.nextNumber = new AtomicLong(lastSaleNumber());
+        this.thread = new Thread(this::run, "sales-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String nextSaleId() { return String.format("S%06d", nextNumber.incrementAndGet()); }
+
+    // Queue a sale for the ledger and wait until it is on disk and applied;
+    // throws if the ledger could not be written, in which case the sale is
+    // not in it. Once close() has begun a sale is either taken by the
+    // final drain or taken back here and refused.
+    public void record(Sale sale) throws IOException {
+        Pending p = new Pending(sale);
+        pending.add(p);
+        if (!running && pending.remove(p)) throw new IOException("sales log is closed");
+        recorded.incrementAndGet();
+        LockSupport.unpark(thread);
+        try {
+            p.done.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Block until every sale recorded so far is on disk and applied
+    public synchronized void flush() {
+        long target = recorded.get();
+        LockSupport.unpark(thread);
+        while (written < target && thread.isAlive()) {
+            try { wait(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+        }
+    }
+
+    public void close() {
+        flush();
+        running = false;
+        LockSupport.unpark(thread);
+        try { thread.join(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    private void run() {
+        while (running || !pending.isEmpty()) {
+            List<Pending> batch = new ArrayList<>();
+            for (Pending p; (p = pending.poll()) != null; ) batch.add(p);
+            if (batch.isEmpty()) { LockSupport.park(this); continue; }
+            List<Sale> sales = new ArrayList<>(batch.size());
+            for (Pending p : batch) sales.add(p.sale);
+            try {
+                long length = append(sales);
+                try { onWritten.accept(sales, length); }
+                catch (RuntimeException e) { System.out.println("Error applying sales: " + e.getMessage()); }
+                for (Pending p : batch) p.done.complete(null);
+            } catch (IOException e) {
+                System.out.println("Error writing sales log: " + e.getMessage());
+                for (Pending p : batch) p.done.completeExceptionally(e);
+            }
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+        }
+    }
+
+    // Returns the ledger's new length. On failure the file is truncated back
+    // to where the batch started, so the ledger never holds part of a sale
+    // the till was told had failed
+    private long append(List<Sale> batch) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            long start = out.getChannel().size();
+            try {
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                for (Sale s : batch) for (String line : s.toCSV()) w.write(line + System.lineSeparator());
+                w.flush();
+                out.getFD().sync();
+                return out.getChannel().size();
+            } catch (IOException e) {
+                try { out.getChannel().truncate(start); }
+                catch (IOException te) { System.out.println("Error trimming sales log: " + te.getMessage()); }
+                throw e;
+            }
+        }
+    }
+
+    // Highest sale number in the ledger (0 if none). IDs are handed out just
+    // before the sale is queued, so concurrent tills can land slightly out of
+    // order; only the tail is read, which is far wider than that window
+    private long lastSaleNumber() {
+        if (!file.exists()) return 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long len = raf.length();
+            int n = (int) Math.min(len, 65536);
+            byte[] tail = new byte[n];
+            raf.seek(len - n);
+            raf.readFully(tail);
+            String[] lines = new String(tail, StandardCharsets.UTF_8).split("\\R");
+            long max = 0;
+            for (int i = n < len ? 1 : 0; i < lines.length; i++) { // the first line may be cut off
+                if (lines[i].isEmpty()) continue;
+                String id = CsvFile.parseLine(lines[i]).getString(0);
+                if (id.startsWith("S")) max = Math.max(max, Long.parseLong(id.substring(1)));
+            }
+            return max;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading sales log: " + e.getMessage());
+            return 0;
+        }
+    }
+}
+
+// =====================================================
+// ID INDEX - Unique hash index on IDs like "BK001"
+// =====================================================
+// IDs in the generated form (prefix + at least three digits, no extra
+// leading zeros) are stored in an open-addressing table keyed by their
+// number; anything else falls back to a map keyed by the whole string.
+// One writer puts while any thread gets without a lock: a slot's value is
+// stored before its key, and a resize fills the new table before
+// swapping it in, so a reader sees an entry whole or not at all.
+class IdIndex<T> {
+    private static final class Table {
+        final AtomicIntegerArray keys;           // number + 1, 0 = empty slot
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    private final String prefix;
+    private volatile Table table = new Table(64);
+    private int numbered = 0;
+    private final Map<String, T> other = new ConcurrentHashMap<>();
+    private volatile int maxNumber = 0;
+
+    public IdIndex(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(String id) {
+        if (id == null) return null;
+        int n = numberOf(id);
+        if (n < 0) return other.get(id);
+        Table t = table;
+        int mask = t.keys.length() - 1;
+        for (int i = mix(n) & mask; ; i = (i + 1) & mask) {
+            int k = t.keys.get(i);
+            if (k == 0) return null;
+            if (k == n + 1) return (T) t.values.get(i);
+        }
+    }
+
+    // Adds the entry; false (and no change) if the ID is already taken
+    public boolean put(String id, T value) {
+        if (get(id) != null) return false;
+        int n = numberOf(id);
+        if (n < 0) {
+            other.put(id, value);
+            n = looseNumberOf(id);
+        } else {
+            if ((numbered + 1) * 2 > table.keys.length()) resize();
+            insert(table, n, value);
+            numbered++;
+        }
+        if (n > maxNumber) maxNumber = n;
+        return true;
+    }
+
+    public int size() { return numbered + other.size(); }
+
+    // Next number after the highest one ever indexed
+    public int nextNumber() { return maxNumber + 1; }
+
+    private static void insert(Table t, int n, Object value) {
+        int mask = t.keys.length() - 1;
+        int i = mix(n) & mask;
+        while (t.keys.get(i) != 0) i = (i + 1) & mask;
+        t.values.set(i, value);
+        t.keys.set(i, n + 1);
+    }
+
+    private void resize() {
+        Table old = table, grown = new Table(old.keys.length() * 2);
+        for (int i = 0; i < old.keys.length(); i++)
+            if (old.keys.get(i) != 0) insert(grown, old.keys.get(i) - 1, old.values.get(i));
+        table = grown;
+    }
+
+    private static int mix(int n) {
+        int h = n * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Number of a generated-form ID, or -1
+    private int numberOf(String id) {
+        int digits = id.length() - prefix.length();
+        if (!id.startsWith(prefix) || digits < 3 || digits > 9) return -1;
+        if (digits > 3 && id.charAt(prefix.length()) == '0') return -1;
+        int n = 0;
+        for (int i = prefix.length(); i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    // Number of any "<prefix><digits>" ID (e.g. "BK7"), used only for the sequence
+    private int looseNumberOf(String id) {
+        try { return Integer.parseInt(id.replace(prefix, "")); }
+        catch (NumberFormatException e) { return 0; }
+    }
+}
+
+// =====================================================
+// INT LIST - Growable array of primitive ints
+// =====================================================
+class IntList {
+    private int[] data;
+    private int size = 0;
+
+    public IntList() { this(4); }
+
+    public IntList(int capacity) { data = new int[Math.max(capacity, 1)]; }
+
+    public void add(int value) {
+        if (size == data.length) data = Arrays.copyOf(data, size * 2);
+        data[size++] = value;
+    }
+
+    public int get(int i) { return data[i]; }
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public int last() { return data[size - 1]; }
+    public int[] toArray() { return Arrays.copyOf(data, size); }
+
+    // Insert keeping ascending order (appending when it belongs at the end)
+    public void insertSorted(int value) {
+        if (size == 0 || data[size - 1] <= value) { add(value); return; }
+        int at = Arrays.binarySearch(data, 0, size, value);
+        if (at < 0) at = -at - 1;
+        if (size == data.length) data = Arrays.copyOf(data, size * 2);
+        System.arraycopy(data, at, data, at + 1, size - at);
+        data[at] = value;
+        size++;
+    }
+
+    // Remove one occurrence from an ascending list; false if absent
+    public boolean removeSorted(int value) {
+        int at = Arrays.binarySearch(data, 0, size, value);
+        if (at < 0) return false;
+        System.arraycopy(data, at + 1, data, at, size - at - 1);
+        size--;
+        return true;
+    }
+
+    // Backing array; only the first size() entries are valid
+    int[] raw() { return data; }
+
+    // Intersection of two ascending arrays (only the first na / nb entries count)
+    static int[] intersect(int[] a, int na, int[] b, int nb) {
+        int[] out = new int[Math.min(na, nb)];
+        int i = 0, j = 0, n = 0;
+        while (i < na && j < nb) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else { out[n++] = a[i]; i++; j++; }
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
+
+// =====================================================
+// POSTING LIST - Append-only ascending ordinals, readable while growing
+// =====================================================
+// One writer appends; any thread may read at the same time without a
+// lock. A reader takes the size first and the array after it, so it never
+// sees a slot that is not filled yet. Readers pass the size of the
+// snapshot they work on and ignore books added since.
+class PostingList {
+    private volatile int[] data;
+    private volatile int size = 0;
+
+    public PostingList(int capacity) { data = new int[Math.max(capacity, 1)]; }
+
+    // Writer only; ordinals arrive in ascending order
+    public void add(int ordinal) {
+        int n = size;
+        int[] d = data;
+        if (n == d.length) data = d = Arrays.copyOf(d, n * 2);
+        d[n] = ordinal;
+        size = n + 1;
+    }
+
+    public boolean isEmpty() { return size == 0; }
+    public int last() { return data[size - 1]; }
+
+    // How many entries are below 'limit'; read data() only after this
+    public int countBelow(int limit) {
+        int n = size;
+        int[] d = data;
+        if (n == 0 || d[n - 1] < limit) return n;
+        int at = Arrays.binarySearch(d, 0, n, limit);
+        return at >= 0 ? at : -at - 1;
+    }
+
+    // Backing array; only the first countBelow(...) entries are valid
+    int[] data() { return data; }
+
+    // Ascending, de-duplicated union of several lists, up to 'limit'
+    static int[] union(Collection<PostingList> lists, int limit) {
+        int total = 0;
+        int[] counts = new int[lists.size()];
+        int k = 0;
+        for (PostingList l : lists) total += counts[k++] = l.countBelow(limit);
+        int[] all = new int[total];
+        int n = 0;
+        k = 0;
+        for (PostingList l : lists) {
+            System.arraycopy(l.data(), 0, all, n, counts[k]);
+            n += counts[k++];
+        }
+        if (lists.size() == 1) return all;
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < all.length; i++)
+            if (unique == 0 || all[unique - 1] != all[i]) all[unique++] = all[i];
+        return unique == all.length ? all : Arrays.copyOf(all, unique);
+    }
+}
+
+// =====================================================
+// STOCK COUNTERS - Live stock per book, changed by compare-and-set
+// =====================================================
+// Indexed by book ordinal in segments of atomic ints. A till takes copies
+// with a CAS loop, so two tills selling the last copy cannot both win and
+// neither waits on a lock. Only the catalog writer adds segments.
+class StockCounters {
+    static final int SEGMENT_BITS = 10, SEGMENT = 1 << SEGMENT_BITS, MASK = SEGMENT - 1;
+
+    private volatile AtomicIntegerArray[] segments = new AtomicIntegerArray[0];
+
+    private AtomicIntegerArray segment(int ordinal) { return segments[ordinal >>> SEGMENT_BITS]; }
+
+    public int get(int ordinal) { return segment(ordinal).get(ordinal & MASK); }
+
+    // Writer only: set a book's stock, growing the table if needed
+    public void set(int ordinal, int stock) {
+        int s = ordinal >>> SEGMENT_BITS;
+        if (s >= segments.length) {
+            AtomicIntegerArray[] grown = Arrays.copyOf(segments, s + 1);
+            for (int i = segments.length; i <= s; i++) grown[i] = new AtomicIntegerArray(SEGMENT);
+            segments = grown;
+        }
+        segment(ordinal).set(ordinal & MASK, stock);
+    }
+
+    public int getAndSet(int ordinal, int stock) { return segment(ordinal).getAndSet(ordinal & MASK, stock); }
+
+    // Take n copies if that many are left; otherwise take nothing
+    public boolean take(int ordinal, int n) {
+        AtomicIntegerArray a = segment(ordinal);
+        int i = ordinal & MASK;
+        while (true) {
+            int left = a.get(i);
+            if (left < n) return false;
+            if (a.compareAndSet(i, left, left - n)) return true;
+        }
+    }
+
+    // Put back copies taken by a checkout that could not complete
+    public void give(int ordinal, int n) { segment(ordinal).addAndGet(ordinal & MASK, n); }
+}
+
+// =====================================================
+// RANGE INDEX - Sorted index from a numeric key to book ordinals
+// =====================================================
+class RangeIndex {
+    private final TreeMap<Long, IntList> entries = new TreeMap<>();
+    private int size = 0;
+
+    public void add(long key, int ordinal) {
+        entries.computeIfAbsent(key, k -> new IntList(2)).insertSorted(ordinal);
+        size++;
+    }
+
+    public void remove(long key, int ordinal) {
+        IntList list = entries.get(key);
+        if (list == null || !list.removeSorted(ordinal)) return;
+        if (list.isEmpty()) entries.remove(key);
+        size--;
+    }
+
+    // Move an ordinal from one key to another (e.g. after a stock change)
+    public void move(long oldKey, long newKey, int ordinal) {
+        if (oldKey == newKey) return;
+        remove(oldKey, ordinal);
+        add(newKey, ordinal);
+    }
+
+    // Ascending ordinals whose key lies in [min, max]: O(log n) to find the
+    // range plus a sort of the k hits to put them back in catalog order
+    public int[] range(long min, long max) {
+        if (min > max) return new int[0];
+        SortedMap<Long, IntList> hits = entries.subMap(min, true, max, true);
+        int total = 0;
+        for (IntList l : hits.values()) total += l.size();
+        int[] out = new int[total];
+        int n = 0;
+        for (IntList l : hits.values()) {
+            System.arraycopy(l.raw(), 0, out, n, l.size());
+            n += l.size();
+        }
+        if (hits.size() > 1) Arrays.sort(out);
+        return out;
+    }
+
+    // Number of ordinals in [min, max] without collecting them
+    public int count(long min, long max) {
+        if (min > max) return 0;
+        int total = 0;
+        for (IntList l : entries.subMap(min, true, max, true).values()) total += l.size();
+        return total;
+    }
+
+    // First k accepted ordinals in key order (ties in catalog order),
+    // stopping as soon as k are found
+    public int[] first(long min, long max, int k, IntPredicate accept) {
+        IntList out = new IntList(Math.max(1, Math.min(k, 64)));
+        if (min > max || k <= 0) return out.toArray();
+        for (IntList l : entries.subMap(min, true, max, true).values()) {
+            int[] raw = l.raw();
+            for (int i = 0; i < l.size(); i++) {
+                if (accept.test(raw[i])) out.add(raw[i]);
+                if (out.size() == k) return out.toArray();
+            }
+        }
+        return out.toArray();
+    }
+
+    public int size() { return size; }
+}
+
+// =====================================================
+// CATEGORY DICTIONARY - Category names as small integer codes
+// =====================================================
+// Names are matched case-insensitively and every book shares the one
+// canonical String per category. Each code keeps an ascending posting
+// list of the ordinals of its books; the code of each book is a column
+// of BookColumns.
+class CategoryDictionary {
+    // One writer registers names and books while searches read. A new
+    // code's name and list are in place before the code can be found.
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] nameArray = new String[0];          // replaced, never changed, so snapshots can share it
+    private volatile PostingList[] postings = new PostingList[0]; // likewise
+
+    // Code for a name, registering it on first sight
+    public int code(String name) {
+        String key = name == null ? "" : name.toLowerCase(Locale.ROOT);
+        Integer code = codes.get(key);
+        if (code != null) return code;
+        int next = nameArray.length;
+        PostingList[] p = Arrays.copyOf(postings, next + 1);
+        p[next] = new PostingList(4);
+        postings = p;
+        String[] n = Arrays.copyOf(nameArray, next + 1);
+        n[next] = name == null ? "" : name;
+        nameArray = n;
+        codes.put(key, next);
+        return next;
+    }
+
+    // Code for a name, or -1 if it was never seen
+    public int find(String name) {
+        Integer code = codes.get(name.toLowerCase(Locale.ROOT));
+        return code == null ? -1 : code;
+    }
+
+    public String name(int code) { return nameArray[code]; }
+    public String[] names() { return nameArray; }
+    public int size() { return nameArray.length; }
+
+    // Record the category of a newly added book (ordinals only grow)
+    public void addBook(int ordinal, int code) { postings[code].add(ordinal); }
+
+    // Books of a category among the first 'limit' ordinals
+    public int count(int code, int limit) { return postings[code].countBelow(limit); }
+
+    PostingList postings(int code) { return postings[code]; }
+
+    // Codes whose name contains 'text' (case-insensitive); scans the handful
+    // of category names, never the books
+    public List<Integer> matching(String text) {
+        String needle = text.toLowerCase(Locale.ROOT);
+        String[] all = nameArray;
+        List<Integer> out = new ArrayList<>();
+        for (int i = 0; i < all.length; i++)
+            if (all[i].toLowerCase(Locale.ROOT).contains(needle)) out.add(i);
+        return out;
+    }
+}
+
+// =====================================================
+// BOOK COLUMNS - The catalog stored one array per field
+// =====================================================
+// Row i of every array is the book with ordinal i: prices are whole cents,
+// categories are dictionary codes. One writer appends and updates rows;
+// readers work on an immutable Snapshot and never see a half-made change.
+// Appended rows land past every earlier snapshot's size, so those arrays
+// are shared freely. Stock and price change in place, so they live in
+// fixed-size chunks and a chunk an earlier snapshot can see is copied
+// before it is written (copy-on-write, one chunk at a time).
+class BookColumns {
+    static final int CHUNK_BITS = 10, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+
+    // Stock, price and record version for CHUNK consecutive rows
+    private static final class Chunk {
+        final int[] stock;
+        final long[] priceCents;
+        final int[] version; // bumped by every stock or price change (in memory only)
+        int epoch; // snapshot generation it was made in; older = shared
+
+        Chunk(int[] stock, long[] priceCents, int[] version, int epoch) {
+            this.stock = stock;
+            this.priceCents = priceCents;
+            this.version = version;
+            this.epoch = epoch;
+        }
+    }
+
+    // Where a Row's price and stock setters go; returns the snapshot with the change
+    interface Editor {
+        Snapshot setStock(String bookId, int stock);
+        Snapshot setPrice(String bookId, double price);
+    }
+
+    private final CategoryDictionary dict;
+    private final Editor editor;
+    private String[] ids, titles, authors;
+    private int[] category;
+    private Chunk[] chunks = new Chunk[4];
+    private int chunksEpoch = 0; // generation the chunk table itself was made in
+    private int epoch = 0;       // bumped by every snapshot()
+    private int size = 0;
+
+    public BookColumns(CategoryDictionary dict, Editor editor) {
+        this.dict = dict;
+        this.editor = editor;
+        ids = new String[64]; titles = new String[64]; authors = new String[64];
+        category = new int[64];
+    }
+
+    // Append a row; returns its ordinal
+    public int add(String id, String title, String author, int categoryCode, long cents, int stockQuantity) {
+        if (size == ids.length) {
+            int n = ids.length * 2;
+            ids = Arrays.copyOf(ids, n); titles = Arrays.copyOf(titles, n); authors = Arrays.copyOf(authors, n);
+            category = Arrays.copyOf(category, n);
+        }
+        int c = size >>> CHUNK_BITS;
+        if ((size & MASK) == 0) {
+            if (c == chunks.length) chunks = Arrays.copyOf(chunks, c * 2);
+            chunks[c] = new Chunk(new int[CHUNK], new long[CHUNK], new int[CHUNK], epoch);
+        }
+        ids[size] = id; titles[size] = title; authors[size] = author; category[size] = categoryCode;
+        chunks[c].stock[size & MASK] = stockQuantity;
+        chunks[c].priceCents[size & MASK] = cents;
+        return size++;
+    }
+
+    public int size() { return size; }
+    public int categoryCode(int o) { return category[o]; }
+    public int stock(int o) { return chunks[o >>> CHUNK_BITS].stock[o & MASK]; }
+    public long priceCents(int o) { return chunks[o >>> CHUNK_BITS].priceCents[o & MASK]; }
+    public int recordVersion(int o) { return chunks[o >>> CHUNK_BITS].version[o & MASK]; }
+
+    public void setStock(int o, int n) {
+        Chunk c = writable(o);
+        c.stock[o & MASK] = n;
+        c.version[o & MASK]++;
+    }
+
+    public void setPriceCents(int o, long cents) {
+        Chunk c = writable(o);
+        c.priceCents[o & MASK] = cents;
+        c.version[o & MASK]++;
+    }
+
+    // The chunk holding row o, copied first if a published snapshot shares it
+    private Chunk writable(int o) {
+        int c = o >>> CHUNK_BITS;
+        Chunk chunk = chunks[c];
+        if (chunk.epoch == epoch) return chunk;
+        if (chunksEpoch != epoch) {
+            chunks = chunks.clone();
+            chunksEpoch = epoch;
+        }
+        chunk = new Chunk(chunk.stock.clone(), chunk.priceCents.clone(), chunk.version.clone(), epoch);
+        chunks[c] = chunk;
+        return chunk;
+    }
+
+    // Freeze the current rows; later writes copy whatever they touch
+    public Snapshot snapshot(long version) {
+        Snapshot s = new Snapshot(this, version, size, ids, titles, authors, category, chunks, dict.names());
+        epoch++;
+        return s;
+    }
+
+    // ----- SNAPSHOT -----
+    // Immutable view of the catalog at one version. Safe to read from any
+    // thread without locking.
+    static final class Snapshot {
+        private final BookColumns owner;
+        private final long version;
+        private final int size;
+        private final String[] ids, titles, authors, categoryNames;
+        private final int[] category;
+        private final Chunk[] chunks;
+        private final List<Book> list = new RowList();
+
+        private Snapshot(BookColumns owner, long version, int size, String[] ids, String[] titles, String[] authors,
+                         int[] category, Chunk[] chunks, String[] categoryNames) {
+            this.owner = owner;
+            this.version = version;
+            this.size = size;
+            this.ids = ids; this.titles = titles; this.authors = authors;
+            this.category = category;
+            this.chunks = chunks;
+            this.categoryNames = categoryNames;
+        }
+
+        public long version() { return version; }
+        public int size() { return size; }
+        public String id(int o) { return ids[o]; }
+        public String title(int o) { return titles[o]; }
+        public String author(int o) { return authors[o]; }
+        public int categoryCode(int o) { return category[o]; }
+        public String category(int o) { return categoryNames[category[o]]; }
+        public int categoryCount() { return categoryNames.length; }
+        public long priceCents(int o) { return chunks[o >>> CHUNK_BITS].priceCents[o & MASK]; }
+        public double price(int o) { return priceCents(o) / 100.0; }
+        public int stock(int o) { return chunks[o >>> CHUNK_BITS].stock[o & MASK]; }
+        public int recordVersion(int o) { return chunks[o >>> CHUNK_BITS].version[o & MASK]; }
+
+        // ----- SCANS -----
+        // Ascending ordinals with price in [min, max] cents, without the index
+        public int[] scanPrice(long min, long max) {
+            int[] out = new int[size];
+            int n = 0;
+            for (int c = 0, base = 0; base < size; c++, base += CHUNK) {
+                long[] p = chunks[c].priceCents;
+                int len = Math.min(CHUNK, size - base);
+                for (int i = 0; i < len; i++) {
+                    out[n] = base + i;
+                    n += (p[i] >= min & p[i] <= max) ? 1 : 0; // branch-free keep
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        public int[] scanStock(int min, int max) {
+            int[] out = new int[size];
+            int n = 0;
+            for (int c = 0, base = 0; base < size; c++, base += CHUNK) {
+                int[] s = chunks[c].stock;
+                int len = Math.min(CHUNK, size - base);
+                for (int i = 0; i < len; i++) {
+                    out[n] = base + i;
+                    n += (s[i] >= min & s[i] <= max) ? 1 : 0;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        // ----- BOOK VIEWS -----
+        public Book get(int o) {
+            if (o < 0 || o >= size) throw new IndexOutOfBoundsException("Index: " + o + ", Size: " + size);
+            return new Row(this, o);
+        }
+
+        public List<Book> booksAt(int[] ordinals) {
+            List<Book> result = new ArrayList<>(ordinals.length);
+            for (int ordinal : ordinals) result.add(new Row(this, ordinal));
+            return result;
+        }
+
+        // All rows as a read-only list of views
+        public List<Book> asList() { return list; }
+
+        // The snapshot whose asList() this is, or null for any other list
+        static Snapshot behind(List<Book> list) {
+            return list instanceof RowList ? ((RowList) list).snapshot() : null;
+        }
+
+        private class RowList extends AbstractList<Book> implements RandomAccess {
+            Snapshot snapshot() { return Snapshot.this; }
+            public Book get(int i) { return Snapshot.this.get(i); }
+            public int size() { return size; }
+        }
+    }
+
+    // Flyweight Book: just a row number in one snapshot. Setting the price or
+    // stock goes through the owner's Editor (DataManager), so the indexes,
+    // totals and journal follow, and the row moves on to the snapshot with
+    // the change. The other fields cannot be changed.
+    static final class Row extends Book {
+        private static final long serialVersionUID = 1L;
+
+        private volatile Snapshot snapshot;
+        private final int ordinal;
+
+        Row(Snapshot snapshot, int ordinal) {
+            super(null, null, null, null, 0, 0);
+            this.snapshot = snapshot;
+            this.ordinal = ordinal;
+        }
+
+        public String getBookId() { return snapshot.id(ordinal); }
+        public String getTitle() { return snapshot.title(ordinal); }
+        public String getAuthor() { return snapshot.author(ordinal); }
+        public String getCategory() { return snapshot.category(ordinal); }
+        public double getPrice() { return snapshot.price(ordinal); }
+        public int getStockQuantity() { return snapshot.stock(ordinal); }
+        public int getVersion() { return snapshot.recordVersion(ordinal); }
+
+        public void setBookId(String bookId) { readOnly(); }
+        public void setTitle(String title) { readOnly(); }
+        public void setAuthor(String author) { readOnly(); }
+        public void setCategory(String category) { readOnly(); }
+        public void setPrice(double price) { snapshot = snapshot.owner.editor.setPrice(getBookId(), price); }
+        public void setStockQuantity(int stockQuantity) {
+            snapshot = snapshot.owner.editor.setStock(getBookId(), stockQuantity);
+        }
+
+        private static void readOnly() {
+            throw new UnsupportedOperationException("Only price and stock can be updated");
+        }
+
+        // The same book, whichever snapshot it was read from
+        public boolean equals(Object o) {
+            return o instanceof Row && ((Row) o).snapshot.owner == snapshot.owner && ((Row) o).ordinal == ordinal;
+        }
+
+        public int hashCode() { return System.identityHashCode(snapshot.owner) * 31 + ordinal; }
+
+        // Serialize as a plain Book
+        private Object writeReplace() {
+            return new Book(getBookId(), getTitle(), getAuthor(), getCategory(), getPrice(), getStockQuantity());
+        }
+    }
+}
+
+// =====================================================
+// CATALOG STATS - Running totals kept up to date on every change
+// =====================================================
+// Whole-catalog and per-category counts, units and inventory value
+// (price x stock, in cents) are adjusted in O(1) as books are added or
+// restocked. Min and max price per category come from a small sorted
+// multiset of that category's prices, so a price change costs O(log n).
+class CatalogStats {
+    static class CategoryStats {
+        private final String name;
+        private int titles = 0;
+        private long units = 0, valueCents = 0;
+        private long minCents = 0, maxCents = 0;
+        private final TreeMap<Long, Integer> prices; // cents -> books at that price; null in copies
+
+        CategoryStats(String name) {
+            this.name = name;
+            this.prices = new TreeMap<>();
+        }
+
+        private CategoryStats(CategoryStats c) {
+            this(c.name, c.titles, c.units, c.valueCents, c.minCents, c.maxCents);
+        }
+
+        // Fixed figures, as in a copy
+        CategoryStats(String name, int titles, long units, long valueCents, long minCents, long maxCents) {
+            this.name = name; this.titles = titles; this.units = units; this.valueCents = valueCents;
+            this.minCents = minCents; this.maxCents = maxCents;
+            prices = null;
+        }
+
+        public String getName() { return name; }
+        public int getTitles() { return titles; }
+        public long getUnits() { return units; }
+        public double getValue() { return valueCents / 100.0; }
+        public double getMinPrice() { return minCents / 100.0; }
+        public double getMaxPrice() { return maxCents / 100.0; }
+
+        private void addPrice(long cents) {
+            prices.merge(cents, 1, Integer::sum);
+            priceRangeChanged();
+        }
+
+        private void removePrice(long cents) {
+            if (prices.merge(cents, -1, Integer::sum) == 0) prices.remove(cents);
+            priceRangeChanged();
+        }
+
+        private void priceRangeChanged() {
+            minCents = prices.isEmpty() ? 0 : prices.firstKey();
+            maxCents = prices.isEmpty() ? 0 : prices.lastKey();
+        }
+    }
+
+    private int titles = 0;
+    private long units = 0, valueCents = 0;
+    private final List<CategoryStats> byCode = new ArrayList<>(); // indexed by dictionary code
+
+    // Make sure a category has a row, even before it has books
+    public void category(int code, String name) {
+        while (byCode.size() <= code) byCode.add(null);
+        if (byCode.get(code) == null) byCode.set(code, new CategoryStats(name));
+    }
+
+    public void addBook(int code, String name, long cents, int stock) {
+        category(code, name);
+        CategoryStats c = byCode.get(code);
+        titles++; c.titles++;
+        units += stock; c.units += stock;
+        valueCents += cents * stock; c.valueCents += cents * stock;
+        c.addPrice(cents);
+    }
+
+    public void stockChanged(int code, long cents, int oldStock, int newStock) {
+        CategoryStats c = byCode.get(code);
+        long du = (long) newStock - oldStock;
+        units += du; c.units += du;
+        valueCents += cents * du; c.valueCents += cents * du;
+    }
+
+    public void priceChanged(int code, int stock, long oldCents, long newCents) {
+        CategoryStats c = byCode.get(code);
+        long dv = (newCents - oldCents) * stock;
+        valueCents += dv; c.valueCents += dv;
+        c.removePrice(oldCents);
+        c.addPrice(newCents);
+    }
+
+    public int getTitles() { return titles; }
+    public long getUnits() { return units; }
+    public double getValue() { return valueCents / 100.0; }
+
+    // Totals worked out elsewhere (see CatalogJson.toStats); like a copy,
+    // they are not kept up to date
+    static CatalogStats of(int titles, long units, long valueCents, List<CategoryStats> categories) {
+        CatalogStats s = new CatalogStats();
+        s.titles = titles; s.units = units; s.valueCents = valueCents;
+        s.byCode.addAll(categories);
+        return s;
+    }
+
+    // Detached copy of the totals; O(number of categories)
+    public CatalogStats copy() {
+        CatalogStats c = new CatalogStats();
+        c.titles = titles; c.units = units; c.valueCents = valueCents;
+        for (CategoryStats k : byCode) c.byCode.add(k == null ? null : new CategoryStats(k));
+        return c;
+    }
+
+    // One row per category in dictionary order
+    public List<CategoryStats> getCategories() {
+        List<CategoryStats> out = new ArrayList<>(byCode.size());
+        for (CategoryStats c : byCode) if (c != null) out.add(c);
+        return out;
+    }
+}
+
+// =====================================================
+// TEXT INDEX - Inverted index over title and author words
+// =====================================================
+// Each lower-cased word maps to an ascending posting list of book
+// ordinals (positions in DataManager's book list). Words are kept sorted
+// so a query word also matches every indexed word it is a prefix of.
+class TextIndex {
+    // One writer adds books while searches read; see PostingList
+    private final Map<String, PostingList> postings = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, PostingList> terms = new ConcurrentSkipListMap<>(); // same lists, sorted by word
+
+    // Index a newly appended book; ordinals must arrive in ascending order
+    public void add(int ordinal, String title, String author) {
+        for (String t : tokenize(title)) post(t, ordinal);
+        for (String t : tokenize(author)) post(t, ordinal);
+    }
+
+    private void post(String term, int ordinal) {
+        PostingList list = postings.get(term);
+        if (list == null) {
+            list = new PostingList(2);
+            postings.put(term, list);
+            terms.put(term, list);
+        }
+        if (list.isEmpty() || list.last() != ordinal) list.add(ordinal);
+    }
+
+    // Ascending ordinals below 'limit' (a snapshot's size) of books matching
+    // every query word (AND), where a query word matches any indexed word
+    // starting with it; null for a blank query
+    public int[] search(String query, int limit) {
+        String[] words = tokenize(query);
+        if (words.length == 0) return null;
+        int[][] perWord = new int[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            perWord[i] = prefixPostings(words[i], limit);
+            if (perWord[i].length == 0) return perWord[i];
+        }
+        // Intersect smallest first so the running result only shrinks
+        Arrays.sort(perWord, Comparator.comparingInt(p -> p.length));
+        int[] result = perWord[0];
+        for (int i = 1; i < perWord.length && result.length > 0; i++)
+            result = IntList.intersect(result, result.length, perWord[i], perWord[i].length);
+        return result;
+    }
+
+    // Union of the posting lists of all words starting with 'prefix'
+    private int[] prefixPostings(String prefix, int limit) {
+        SortedMap<String, PostingList> range = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.isEmpty()) return new int[0];
+        return PostingList.union(new ArrayList<>(range.values()), limit); // fixed copy: words may be added meanwhile
+    }
+
+    // Relevance of a matching book: whole-word hits beat prefix hits and
+    // title hits beat author hits. Works on the raw strings without allocating
+    public static int score(String[] queryWords, String title, String author) {
+        int score = 0;
+        for (String q : queryWords) {
+            int t = wordMatch(title, q), a = wordMatch(author, q);
+            score += t == 2 ? 4 : t == 1 ? 3 : a == 2 ? 2 : a;
+        }
+        return score;
+    }
+
+    // True if every query word starts some word of the title or author,
+    // i.e. the book is one search(query) would return
+    public static boolean matches(String[] queryWords, String title, String author) {
+        for (String q : queryWords) if (wordMatch(title, q) == 0 && wordMatch(author, q) == 0) return false;
+        return true;
+    }
+
+    // True if every book matching 'after' also matches 'before': each earlier
+    // word is a prefix of some later one (e.g. "har" -> "harry po")
+    public static boolean narrows(String[] before, String[] after) {
+        for (String b : before) {
+            boolean covered = false;
+            for (String a : after) if (a.startsWith(b)) { covered = true; break; }
+            if (!covered) return false;
+        }
+        return true;
+    }
+
+    // 2 if 'text' has 'word' as a whole word, 1 if only as a word prefix, else 0
+    private static int wordMatch(String text, String word) {
+        if (text == null) return 0;
+        int best = 0, n = text.length(), len = word.length();
+        for (int i = 0; i + len <= n; i++) {
+            if (i > 0 && Character.isLetterOrDigit(text.charAt(i - 1))) continue; // not a word start
+            if (!text.regionMatches(true, i, word, 0, len)) continue;
+            if (i + len == n || !Character.isLetterOrDigit(text.charAt(i + len))) return 2;
+            best = 1;
+        }
+        return best;
+    }
+
+    // Lower-cased runs of letters and digits
+    public static String[] tokenize(String text) {
+        if (text == null) return new String[0];
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
+    public int termCount() { return postings.size(); }
+}
+
+// =====================================================
+// TRIGRAM INDEX - Typo-tolerant lookup of title and author words
+// =====================================================
+// Every word is padded ("  word ") and cut into 3-letter grams; each gram
+// maps to the ascending ordinals of books containing it. A query first
+// counts shared grams per book, then only the best-overlapping books are
+// checked with a bounded edit distance. One writer adds books while
+// searches read, as with TextIndex.
+class TrigramIndex {
+    // A book must share at least this fraction of the query's grams
+    static final double MIN_OVERLAP = 0.3;
+    // At most this many top-overlap candidates get the edit-distance check
+    static final int MAX_CANDIDATES = 1000;
+
+    private final Map<Long, PostingList> grams = new ConcurrentHashMap<>();
+    private int books = 0; // writer only
+    // Per-book shared-gram counts, one array per searching thread; grown to
+    // the catalog once and zeroed again through the touched ordinals
+    private final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[0]);
+
+    public void add(int ordinal, String title, String author) {
+        for (String w : TextIndex.tokenize(title)) post(w, ordinal);
+        for (String w : TextIndex.tokenize(author)) post(w, ordinal);
+        books = Math.max(books, ordinal + 1);
+    }
+
+    // Books indexed so far (ordinals 0 .. size() - 1)
+    public int size() { return books; }
+
+    private void post(String word, int ordinal) {
+        for (long g : gramsOf(word)) {
+            PostingList list = grams.get(g);
+            if (list == null) grams.put(g, list = new PostingList(2));
+            if (list.isEmpty() || list.last() != ordinal) list.add(ordinal);
+        }
+    }
+
+    // Ordinals below 'limit' (a snapshot's size) of books with enough grams
+    // in common with the query, most shared first. The per-book counts are
+    // this thread's own, so searches run side by side.
+    public int[] candidates(String query, int limit) {
+        long[] q = gramsOf(TextIndex.tokenize(query));
+        if (q.length == 0) return new int[0];
+        int[] counts = scratch.get();
+        if (counts.length < limit) scratch.set(counts = new int[Math.max(limit, counts.length * 2)]);
+
+        IntList touched = new IntList();
+        int maxShared = 0;
+        for (long g : q) {
+            PostingList list = grams.get(g);
+            if (list == null) continue;
+            int n = list.countBelow(limit);
+            int[] raw = list.data();
+            for (int i = 0; i < n; i++) {
+                int o = raw[i];
+                if (counts[o]++ == 0) touched.add(o);
+                if (counts[o] > maxShared) maxShared = counts[o];
+            }
+        }
+
+        // Bucket the books by shared-gram count and keep the best ones
+        int need = Math.max(1, (int) Math.ceil(q.length * MIN_OVERLAP));
+        IntList[] byCount = new IntList[maxShared + 1];
+        for (int i = 0; i < touched.size(); i++) {
+            int o = touched.get(i);
+            int c = counts[o];
+            if (c < need) continue;
+            if (byCount[c] == null) byCount[c] = new IntList();
+            byCount[c].add(o);
+        }
+        for (int i = 0; i < touched.size(); i++) counts[touched.get(i)] = 0;
+        IntList out = new IntList();
+        for (int c = maxShared; c >= need && out.size() < MAX_CANDIDATES; c--)
+            if (byCount[c] != null)
+                for (int i = 0; i < byCount[c].size() && out.size() < MAX_CANDIDATES; i++) out.add(byCount[c].get(i));
+        return out.toArray();
+    }
+
+    // Padded 3-grams of every word, each gram's three chars packed 16 bits apart in a long
+    private static long[] gramsOf(String... words) {
+        int total = 0;
+        for (String w : words) total += w.length() + 1;
+        long[] out = new long[total];
+        int n = 0;
+        for (String w : words) {
+            String p = "  " + w + " ";
+            for (int i = 0; i + 3 <= p.length(); i++)
+                out[n++] = ((long) p.charAt(i) << 32) | ((long) p.charAt(i + 1) << 16) | p.charAt(i + 2);
+        }
+        return out;
+    }
+
+    // Smallest edit distance (insert, delete, substitute, swap neighbours)
+    // from 'word' to any word of 'text', or max + 1 if none is within 'max'
+    public static int bestDistance(String word, String text, int max) {
+        int best = max + 1;
+        for (String w : TextIndex.tokenize(text)) {
+            best = Math.min(best, distance(word, w, Math.min(max, best - 1)));
+            if (best == 0) break;
+        }
+        return best;
+    }
+
+    // Optimal-string-alignment distance, giving up (returning max + 1) as
+    // soon as every cell in a row exceeds 'max'
+    static int distance(String a, String b, int max) {
+        if (max < 0) return max + 1;
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+        int n = a.length(), m = b.length();
+        int[] prev2 = new int[m + 1], prev = new int[m + 1], cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int v = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+                    v = Math.min(v, prev2[j - 2] + 1);
+                cur[j] = v;
+                rowMin = Math.min(rowMin, v);
+            }
+            if (rowMin > max) return max + 1;
+            int[] t = prev2; prev2 = prev; prev = cur; cur = t;
+        }
+        return prev[m] <= max ? prev[m] : max + 1;
+    }
+}
+
+// =====================================================
+// PARALLEL SCAN - Filters ordinal ranges on several cores
+// =====================================================
+// The catalog is cut into fixed ranges that are filtered independently on
+// the common ForkJoinPool; the parts are then joined in range order, so
+// the result is in catalog order exactly as a sequential loop gives it.
+class ParallelScan {
+    // Catalogs smaller than this are filtered on the calling thread
+    // (-Dbookshop.parallelScanMin, default 50000)
+    static final int MIN_SIZE = Integer.getInteger("bookshop.parallelScanMin", 50_000);
+    static final int CHUNK = 16_384;
+
+    // Ascending ordinals in [0, size) that pass 'test'; 'test' must be
+    // safe to call from several threads at once
+    public static int[] filter(int size, IntPredicate test) {
+        if (size < MIN_SIZE || ForkJoinPool.getCommonPoolParallelism() < 2) return filter(0, size, test);
+        int chunks = (size + CHUNK - 1) / CHUNK;
+        int[][] parts = new int[chunks][];
+        IntStream.range(0, chunks).parallel()
+                .forEach(c -> parts[c] = filter(c * CHUNK, Math.min(size, (c + 1) * CHUNK), test));
+        int total = 0;
+        for (int[] p : parts) total += p.length;
+        int[] out = new int[total];
+        int n = 0;
+        for (int[] p : parts) {
+            System.arraycopy(p, 0, out, n, p.length);
+            n += p.length;
+        }
+        return out;
+    }
+
+    private static int[] filter(int from, int to, IntPredicate test) {
+        IntList out = new IntList();
+        for (int i = from; i < to; i++) if (test.test(i)) out.add(i);
+        return out.toArray();
+    }
+}
+
+// =====================================================
+// RESULT PAGE - One slice of a search result plus the full count
+// =====================================================
+class ResultPage {
+    private final List<Book> books;
+    private final int offset, total;
+
+    public ResultPage(List<Book> books, int offset, int total) {
+        this.books = books;
+        this.offset = offset;
+        this.total = total;
+    }
+
+    // Slice of a list that is already built (e.g. a cached result)
+    public static ResultPage of(List<Book> all, int offset, int limit) {
+        int from = Math.min(Math.max(offset, 0), all.size());
+        int to = (int) Math.min((long) from + Math.max(limit, 0), all.size());
+        return new ResultPage(all.subList(from, to), from, all.size());
+    }
+
+    public List<Book> getBooks() { return books; }
+    public int getOffset() { return offset; }
+    public int getTotal() { return total; }
+    public int getEnd() { return offset + books.size(); }
+    public boolean hasMore() { return getEnd() < total; }
+    public Book last() { return books.isEmpty() ? null : books.get(books.size() - 1); }
+}
+
+// =====================================================
+// QUERY CACHE - LRU cache of search results per catalog version
+// =====================================================
+// Each entry remembers the catalog version it was computed at; once the
+// catalog changes the entry no longer matches and is dropped on lookup.
+class QueryCache {
+    private static class Entry {
+        final long version;
+        final List<Book> books;
+
+        Entry(long version, List<Book> books) {
+            this.version = version;
+            this.books = books;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits = 0, misses = 0;
+
+    public QueryCache(int capacity) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) { return size() > capacity; }
+        };
+    }
+
+    // Cached result for 'key' computed at 'version', or null
+    public synchronized List<Book> get(String key, long version) {
+        Entry e = entries.get(key);
+        if (e != null && e.version == version) { hits++; return e.books; }
+        if (e != null) entries.remove(key);
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String key, long version, List<Book> books) {
+        entries.put(key, new Entry(version, books));
+    }
+
+    public synchronized void clear() { entries.clear(); }
+    public synchronized int size() { return entries.size(); }
+    public synchronized long hits() { return hits; }
+    public synchronized long misses() { return misses; }
+}
+
+// =====================================================
+// BOOK QUERY - Several search conditions joined with AND
+// =====================================================
+class BookQuery {
+    private String text;      // words that must appear in the title or author
+    private String category;  // category name; partial names match every category containing them
+    private double minPrice = Double.NEGATIVE_INFINITY, maxPrice = Double.POSITIVE_INFINITY;
+    private int minStock = Integer.MIN_VALUE, maxStock = Integer.MAX_VALUE;
+
+    // Setters return 'this' so conditions can be chained; blank text is ignored
+    public BookQuery text(String text) { this.text = blankToNull(text); return this; }
+    public BookQuery category(String category) { this.category = blankToNull(category); return this; }
+    public BookQuery minPrice(double p) { this.minPrice = p; return this; }
+    public BookQuery maxPrice(double p) { this.maxPrice = p; return this; }
+    public BookQuery minStock(int s) { this.minStock = s; return this; }
+    public BookQuery maxStock(int s) { this.maxStock = s; return this; }
+
+    public String getText() { return text; }
+    public String getCategory() { return category; }
+    public double getMinPrice() { return minPrice; }
+    public double getMaxPrice() { return maxPrice; }
+    public int getMinStock() { return minStock; }
+    public int getMaxStock() { return maxStock; }
+
+    public boolean hasText() { return text != null; }
+    public boolean hasCategory() { return category != null; }
+    public boolean hasPrice() { return minPrice != Double.NEGATIVE_INFINITY || maxPrice != Double.POSITIVE_INFINITY; }
+    public boolean hasStock() { return minStock != Integer.MIN_VALUE || maxStock != Integer.MAX_VALUE; }
+    public boolean isEmpty() { return !hasText() && !hasCategory() && !hasPrice() && !hasStock(); }
+
+    private static String blankToNull(String s) {
+        return s == null || s.trim().isEmpty() ? null : s.trim();
+    }
+
+    // Same for queries that differ only in case, spacing or punctuation
+    public String cacheKey() {
+        return (category == null ? "" : category.toLowerCase(Locale.ROOT)) + "|" + minPrice + "|" + maxPrice
+                + "|" + minStock + "|" + maxStock + "|" + (text == null ? "" : String.join(" ", TextIndex.tokenize(text)));
+    }
+
+    // e.g. category=Science AND price<=2000.0 AND stock>=5 AND title~"history"
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (hasCategory()) parts.add("category=" + category);
+        if (minPrice != Double.NEGATIVE_INFINITY) parts.add("price>=" + minPrice);
+        if (maxPrice != Double.POSITIVE_INFINITY) parts.add("price<=" + maxPrice);
+        if (minStock != Integer.MIN_VALUE) parts.add("stock>=" + minStock);
+        if (maxStock != Integer.MAX_VALUE) parts.add("stock<=" + maxStock);
+        if (hasText()) parts.add("title~\"" + text + "\"");
+        return parts.isEmpty() ? "all books" : String.join(" AND ", parts);
+    }
+}
+
+// =====================================================
+// CATALOG EVENTS - What changed, for screens that update in place
+// =====================================================
+class CatalogEvent {
+    enum Type { BOOK_ADDED, STOCK_CHANGED, PRICE_CHANGED, CATEGORY_ADDED, USER_ADDED }
+
+    private final Type type;
+    private final String key;     // BookID, CategoryID or username
+    private final Object subject; // the Book as of the change, the Category or the Person
+
+    private CatalogEvent(Type type, String key, Object subject) {
+        this.type = type;
+        this.key = key;
+        this.subject = subject;
+    }
+
+    static CatalogEvent bookAdded(Book b) { return new CatalogEvent(Type.BOOK_ADDED, b.getBookId(), b); }
+    static CatalogEvent stockChanged(Book b) { return new CatalogEvent(Type.STOCK_CHANGED, b.getBookId(), b); }
+    static CatalogEvent priceChanged(Book b) { return new CatalogEvent(Type.PRICE_CHANGED, b.getBookId(), b); }
+    static CatalogEvent categoryAdded(Category c) { return new CatalogEvent(Type.CATEGORY_ADDED, c.getCategoryId(), c); }
+    static CatalogEvent userAdded(Person p) { return new CatalogEvent(Type.USER_ADDED, p.getUsername(), p); }
+
+    public Type getType() { return type; }
+    public String getKey() { return key; }
+    public Book getBook() { return subject instanceof Book ? (Book) subject : null; }
+    public Category getCategory() { return subject instanceof Category ? (Category) subject : null; }
+    public Person getUser() { return subject instanceof Person ? (Person) subject : null; }
+
+    public String toString() { return type + " " + key; }
+}
+
+// Receives each batch of changes on the Swing event thread
+interface CatalogListener {
+    void catalogChanged(List<CatalogEvent> events);
+}
+
+// Collects events from any thread and delivers them to the listeners on
+// the event thread. Everything that arrives before the event thread gets
+// to a batch joins it, and repeated changes of one kind to one book are
+// merged: the batch keeps the first one's place and the last one's book.
+class ChangeFeed {
+    private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+    private final LinkedHashMap<String, CatalogEvent> pending = new LinkedHashMap<>(); // guarded by 'this'
+    private boolean scheduled = false;
+
+    public void addListener(CatalogListener l) { listeners.add(l); }
+    public void removeListener(CatalogListener l) { listeners.remove(l); }
+
+    // Cheap when nobody is listening (e.g. the headless server)
+    public void publish(CatalogEvent e) {
+        if (listeners.isEmpty()) return;
+        synchronized (this) {
+            pending.put(e.getType() + ":" + e.getKey(), e);
+            if (scheduled) return;
+            scheduled = true;
+        }
+        SwingUtilities.invokeLater(this::deliver);
+    }
+
+    private void deliver() {
+        List<CatalogEvent> batch;
+        synchronized (this) {
+            batch = Collections.unmodifiableList(new ArrayList<>(pending.values()));
+            pending.clear();
+            scheduled = false;
+        }
+        for (CatalogListener l : listeners) {
+            try { l.catalogChanged(batch); }
+            catch (RuntimeException ex) { System.out.println("Error in catalog listener: " + ex.getMessage()); }
+        }
+    }
+}
+
+// =====================================================
+// DATA MANAGER - Handles all data and file operations
+// =====================================================
+class DataManager implements FileOperations, BookshopService {
+    // Journal is folded into the snapshot after this many records
+    static final int COMPACT_AFTER = 500;
+    // Number of distinct search results kept
+    static final int CACHE_SIZE = 256;
+    // CSV import uses several cores unless -Dbookshop.parallelLoad=false
+    static final boolean PARALLEL_LOAD = Boolean.parseBoolean(System.getProperty("bookshop.parallelLoad", "true"));
+
+    // ----- CONCURRENCY -----
+    // One writer at a time. The write lock covers the in-memory change and
+    // queueing its journal record, never an fsync. The public mutators are
+    // also synchronized, except versioned edits (commitEdit), which meet
+    // other writers only on the write lock. Readers never wait: each read
+    // takes the published snapshot once and answers from it.
+    // The ID, word, category and trigram indexes only grow, can be read
+    // while the writer adds to them, and every lookup is cut off at the
+    // snapshot's size. The price and stock indexes move books around, so
+    // they are read under the read lock, but only when no writer holds or
+    // waits for it; otherwise the snapshot's columns are scanned instead.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile BookColumns.Snapshot published;
+    private volatile CatalogStats publishedStats = new CatalogStats();
+    private volatile List<Person> userList = Collections.emptyList();
+    private volatile List<Category> categoryList = Collections.emptyList();
+
+    // Writer-side lists; readers see them through userList and categoryList
+    private List<Person> users = new ArrayList<>();
+    private List<Category> categories = new ArrayList<>();
+    // Unique indexes, kept in step with the lists by the insert* methods
+    private IdIndex<Integer> bookIndex = new IdIndex<>("BK"); // BookID -> book ordinal
+    private IdIndex<Category> categoryIndex = new IdIndex<>("CAT");
+    private Map<String, Person> userIndex = new ConcurrentHashMap<>();
+    private TextIndex textIndex = new TextIndex();
+    private volatile TrigramIndex trigramIndex; // built in the background after loading, then kept up to date
+    private RangeIndex priceIndex = new RangeIndex(); // keyed by price in cents
+    private RangeIndex stockIndex = new RangeIndex();
+    private CategoryDictionary categoryDict = new CategoryDictionary();
+    // Setters on catalog books; checked like updateBook
+    private final BookColumns.Editor rowEditor = new BookColumns.Editor() {
+        public BookColumns.Snapshot setStock(String bookId, int stock) {
+            if (stock < 0) throw new IllegalArgumentException("Stock cannot be negative");
+            updateStock(bookId, stock);
+            return published;
+        }
+
+        public BookColumns.Snapshot setPrice(String bookId, double price) {
+            if (price <= 0) throw new IllegalArgumentException("Price must be positive");
+            updatePrice(bookId, price);
+            return published;
+        }
+    };
+    private BookColumns columns = new BookColumns(categoryDict, rowEditor); // written by the writer only
+    private CatalogStats stats = new CatalogStats();
+    // Live stock for the tills; runs ahead of the columns by the sales still
+    // on their way through the sales log
+    private StockCounters counters = new StockCounters();
+
+    // Bumped by every change that can alter a search result; readers use
+    // the version of their snapshot
+    private long catalogVersion = 0;
+    private QueryCache cache = new QueryCache(CACHE_SIZE);
+    private ChangeFeed feed = new ChangeFeed();
+    private final AtomicLong updateConflicts = new AtomicLong(); // versioned edits that lost a race
+
+    private Journal journal = new Journal(dataFile("journal.log").getPath());
+    private File snapshotFile = dataFile("catalog.snap");
+    private File ledgerFile = dataFile("sales.log");
+    // How much of the ledger the stock figures include (under the write
+    // lock); journaled as LEDGER records and kept in the snapshot
+    private long ledgerLength = -1;
+    private WriteBehindFlusher flusher; // null unless write-behind mode is on
+    // Folds a long journal into the snapshot off the writer's thread
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compactQueued = new AtomicBoolean();
+    private SalesLog salesLog;
+
+    // Data files live in -Dbookshop.dataDir (default: the working directory)
+    static File dataFile(String name) {
+        String dir = System.getProperty("bookshop.dataDir");
+        return dir == null ? new File(name) : new File(dir, name);
+    }
+
+    // Write-behind window comes from -Dbookshop.writeBehindMs (0 = journal every change)
+    public DataManager() {
+        this(Long.getLong("bookshop.writeBehindMs", 0));
+    }
+
+    public DataManager(long writeBehindMillis) {
+        published = columns.snapshot(0);
+        if (writeBehindMillis > 0) flusher = new WriteBehindFlusher(this::flushSnapshot, writeBehindMillis);
+        loadFromFile();
+        salesLog = new SalesLog(ledgerFile.getPath(), this::commitSales);
+        if (users.isEmpty()) {
+            loadDefaultData();
+            saveToFile();
+            checkpoint();
+        }
+        buildTrigramIndex();
+    }
+
+    // The fuzzy-search index is built from a snapshot on its own thread, so
+    // neither loading nor the first fuzzy search waits for it. Books added
+    // meanwhile are indexed before it goes live; from then on insertBook
+    // keeps it current.
+    private void buildTrigramIndex() {
+        Thread t = new Thread(() -> {
+            BookColumns.Snapshot snap = published;
+            TrigramIndex index = new TrigramIndex();
+            for (int i = 0; i < snap.size(); i++) index.add(i, snap.title(i), snap.author(i));
+            synchronized (this) { // no book is added while catching up
+                BookColumns.Snapshot now = published;
+                for (int i = index.size(); i < now.size(); i++) index.add(i, now.title(i), now.author(i));
+                trigramIndex = index;
+            }
+        }, "trigram-index");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Load sample data for first run
+    private void loadDefaultData() {
+        insertUser(new Manager("manager", "manager123", "John Smith"));
+        insertUser(new Cashier("cashier", "cashier123", "Jane Doe"));
+
+        insertCategory(new Category("CAT001", "Fiction", "Fictional novels and stories"));
+        insertCategory(new Category("CAT002", "Non-Fiction", "Non-fictional books and biographies"));
+        insertCategory(new Category("CAT003", "Science", "Science and technology books"));
+        insertCategory(new Category("CAT004", "History", "Historical books and references"));
+        insertCategory(new Category("CAT005", "Children", "Books for children"));
+
+        insertBook(new Book("BK001", "The Great Gatsby", "F. Scott Fitzgerald", "Fiction", 1500.00, 25));
+        insertBook(new Book("BK002", "To Kill a Mockingbird", "Harper Lee", "Fiction", 1200.00, 30));
+        insertBook(new Book("BK003", "A Brief History of Time", "Stephen Hawking", "Science", 2000.00, 15));
+        insertBook(new Book("BK004", "Sapiens", "Yuval Noah Harari", "History", 1800.00, 20));
+        insertBook(new Book("BK005", "The Cat in the Hat", "Dr. Seuss", "Children", 800.00, 40));
+        insertBook(new Book("BK006", "1984", "George Orwell", "Fiction", 1100.00, 35));
+        insertBook(new Book("BK007", "Becoming", "Michelle Obama", "Non-Fiction", 2200.00, 18));
+        insertBook(new Book("BK008", "Cosmos", "Carl Sagan", "Science", 1900.00, 12));
+        insertBook(new Book("BK009", "The Diary of a Young Girl", "Anne Frank", "History", 950.00, 28));
+        insertBook(new Book("BK010", "Charlotte's Web", "E.B. White", "Children", 750.00, 45));
+    }
+
+    // ----- FILE SAVE METHODS -----
+    // Export all three CSV files; each one is replaced atomically
+    public void saveToFile() {
+        List<Person> u = userList;
+        List<Book> b = published.asList();
+        List<Category> c = categoryList;
+
+        // Save users
+        try {
+            writeCsv("users.csv", "Role,Username,Password,FullName", w -> { for (Person p : u) w.println(userToCSV(p)); });
+        } catch (IOException e) { System.out.println("Error saving users: " + e.getMessage()); }
+
+        // Save books
+        try {
+            writeCsv("books.csv", "BookID,Title,Author,Category,Price,StockQuantity", w -> { for (Book k : b) w.println(k.toCSV()); });
+        } catch (IOException e) { System.out.println("Error saving books: " + e.getMessage()); }
+
+        // Save categories
+        try {
+            writeCsv("categories.csv", "CategoryID,CategoryName,Description", w -> { for (Category k : c) w.println(k.toCSV()); });
+        } catch (IOException e) { System.out.println("Error saving categories: " + e.getMessage()); }
+    }
+
+    private void writeCsv(String fileName, String header, Consumer<PrintWriter> rows) throws IOException {
+        AtomicFiles.write(dataFile(fileName), out -> {
+            PrintWriter w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            w.println(header);
+            rows.accept(w);
+            w.flush();
+            if (w.checkError()) throw new IOException("write failed");
+        });
+    }
+
+    // ----- SNAPSHOT METHODS -----
+    // Write the binary snapshot now; the journal up to it is then dropped
+    public void checkpoint() {
+        try { compact(); }
+        catch (IOException e) { System.out.println("Error writing snapshot: " + e.getMessage()); }
+    }
+
+    // Fold the journal into a new snapshot. The journal is rotated under the
+    // write lock, where every published change has its record queued, so
+    // the snapshot covers exactly the rotated records, and changes made
+    // while it is written go to the new file.
+    private void compact() throws IOException {
+        synchronized (compactor) {
+            List<Person> u;
+            List<Category> c;
+            BookColumns.Snapshot snap;
+            long ledger;
+            lock.writeLock().lock();
+            try {
+                journal.rotate();
+                u = userList;
+                c = categoryList;
+                snap = published;
+                ledger = ledgerLength;
+            } finally { lock.writeLock().unlock(); }
+            writeSnapshot(u, c, snap.asList(), ledger);
+            journal.dropRotated();
+        }
+    }
+
+    // Compact on the background thread; at most one run is queued at a time
+    private void compactLater() {
+        if (!compactQueued.compareAndSet(false, true)) return;
+        compactor.execute(() -> {
+            compactQueued.set(false);
+            checkpoint();
+        });
+    }
+
+    private void writeSnapshot(List<Person> u, List<Category> c, List<Book> b, long ledger) throws IOException {
+        AtomicFiles.write(snapshotFile, out -> SnapshotFile.write(out, u, c, b, ledger));
+    }
+
+    // Background save used in write-behind mode; reads the published
+    // snapshots, so it holds up writers only while the journal is rotated
+    private void flushSnapshot() throws IOException {
+        compact();
+    }
+
+    // Wait until every change so far is durable
+    public void flush() throws IOException {
+        salesLog.flush();
+        if (flusher != null) flusher.flush();
+    }
+
+    // Clean shutdown: drain pending sales and writes, export the CSV files,
+    // then checkpoint so the snapshot stays newest
+    public void close() {
+        compactor.shutdown();
+        salesLog.close();
+        if (flusher != null) {
+            // A failed background save is retried by the checkpoint below
+            try { flusher.close(); }
+            catch (IOException e) { System.out.println("Error in background save: " + e.getMessage()); }
+        }
+        saveToFile();
+        checkpoint();
+        journal.close();
+    }
+
+    // ----- FILE LOAD METHODS -----
+    // Prefer the binary snapshot; fall back to importing the CSV files when there
+    // is no snapshot or the CSV files were edited after it was written
+    public void loadFromFile() {
+        List<Person> u = new ArrayList<>();
+        List<Category> c = new ArrayList<>();
+        List<Book> b = new ArrayList<>();
+        long[] ledger = {-1};
+        if (csvNewerThanSnapshot() || !SnapshotFile.read(snapshotFile, u, c, b, ledger)) importFromCsv(u, c, b);
+        ledgerLength = ledger[0];
+
+        for (Person p : u)
+            if (!insertUser(p)) System.out.println("Skipping duplicate user: " + p.getUsername());
+        for (Category k : c)
+            if (!insertCategory(k)) System.out.println("Skipping duplicate category: " + k.getCategoryId());
+        for (Book k : b)
+            if (!insertBook(k)) System.out.println("Skipping duplicate book: " + k.getBookId());
+
+        journal.replay(this::applyJournalRecord);
+        replayLedger();
+    }
+
+    // Sales that reached the ledger but not the journal (a crash between the
+    // two) are applied again from the part of the ledger after ledgerLength.
+    // With no record of how much was applied (CSV import, or an older
+    // snapshot) the stock is taken to include the whole ledger.
+    private void replayLedger() {
+        long length = ledgerFile.length();
+        if (ledgerLength < 0 || ledgerLength > length) {
+            if (ledgerLength > length) System.out.println("Sales log is shorter than expected; not replaying it");
+            ledgerLength = length;
+            return;
+        }
+        if (ledgerLength == length) return;
+        byte[] tail;
+        try (RandomAccessFile raf = new RandomAccessFile(ledgerFile, "r")) {
+            tail = new byte[(int) (length - ledgerLength)];
+            raf.seek(ledgerLength);
+            raf.readFully(tail);
+        } catch (IOException e) {
+            System.out.println("Error reading sales log: " + e.getMessage());
+            return;
+        }
+        // Only whole lines; a line cut off by a crash was never a recorded sale
+        int end = tail.length;
+        while (end > 0 && tail[end - 1] != '\n') end--;
+        if (end == 0) return;
+        String lines = new String(tail, 0, end, StandardCharsets.UTF_8);
+        long applied = ledgerLength + end;
+        List<String> records = new ArrayList<>();
+        long[] seq = new long[1];
+        write(() -> {
+            for (String line : lines.split("\\R")) {
+                if (line.isEmpty()) continue;
+                CsvRow r = CsvFile.parseLine(line); // sale, time, cashier, book, quantity, unit price
+                Integer ordinal = r.size() == 6 ? bookIndex.get(r.getString(3)) : null;
+                int quantity;
+                try { quantity = ordinal == null ? 0 : r.getInt(4); }
+                catch (NumberFormatException e) { quantity = 0; }
+                if (quantity <= 0) { System.out.println("Skipping bad sales log line: " + line); continue; }
+                int after = moveStock(ordinal, -quantity);
+                counters.set(ordinal, after);
+                records.add(CsvFile.quote(r.getString(3)) + "," + after);
+            }
+            logAll("STOCK", records);
+            ledgerLength = applied;
+            seq[0] = log("LEDGER", String.valueOf(applied));
+            return true;
+        });
+        System.out.println("Applied " + records.size() + " sale lines from the sales log");
+        durable(seq[0]);
+    }
+
+    private boolean csvNewerThanSnapshot() {
+        long snap = snapshotFile.lastModified();
+        for (String name : new String[]{"users.csv", "books.csv", "categories.csv"})
+            if (dataFile(name).lastModified() > snap) return true;
+        return false;
+    }
+
+    // The three files are parsed at the same time; books.csv is also chunked
+    private void importFromCsv(List<Person> users, List<Category> categories, List<Book> books) {
+        CompletableFuture<List<Person>> u = loadCsvAsync("users.csv", "users", r -> parseUser(r, 0));
+        CompletableFuture<List<Category>> c = loadCsvAsync("categories.csv", "categories", r -> parseCategory(r, 0));
+        CompletableFuture<List<Book>> b = loadCsvAsync("books.csv", "books", r -> {
+            try { return parseBook(r, 0); }
+            catch (NumberFormatException e) { System.out.println("Skipping bad book row: " + e.getMessage()); return null; }
+        });
+        users.addAll(u.join());
+        categories.addAll(c.join());
+        books.addAll(b.join());
+    }
+
+    private <T> CompletableFuture<List<T>> loadCsvAsync(String fileName, String what, RowParser<T> parser) {
+        if (!PARALLEL_LOAD) return CompletableFuture.completedFuture(loadCsv(fileName, what, parser));
+        return CompletableFuture.supplyAsync(() -> loadCsv(fileName, what, parser));
+    }
+
+    private <T> List<T> loadCsv(String fileName, String what, RowParser<T> parser) {
+        File file = dataFile(fileName);
+        if (!file.exists()) return new ArrayList<>();
+        try {
+            return CsvFile.readAll(file, true, PARALLEL_LOAD, parser);
+        } catch (IOException e) {
+            System.out.println("Error loading " + what + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    // ----- CSV ROW PARSERS (fields start at column 'f') -----
+    private Person parseUser(CsvRow r, int f) {
+        if (r.size() - f != 4) return null;
+        String role = r.getString(f);
+        if (role.equals("Manager")) return new Manager(r.getString(f + 1), r.getString(f + 2), r.getString(f + 3));
+        return new Cashier(r.getString(f + 1), r.getString(f + 2), r.getString(f + 3));
+    }
+
+    private Book parseBook(CsvRow r, int f) {
+        if (r.size() - f != 6) return null;
+        return new Book(r.getString(f), r.getString(f + 1), r.getString(f + 2), r.getString(f + 3),
+                r.getDouble(f + 4), r.getInt(f + 5));
+    }
+
+    private Category parseCategory(CsvRow r, int f) {
+        if (r.size() - f != 3) return null;
+        return new Category(r.getString(f), r.getString(f + 1), r.getString(f + 2));
+    }
+
+    private String userToCSV(Person u) {
+        return u.getRole() + "," + CsvFile.quote(u.getUsername()) + "," + CsvFile.quote(u.getPassword()) + ","
+                + CsvFile.quote(u.getFullName());
+    }
+
+    // ----- JOURNAL -----
+    // Replay one record; records already in the snapshot are skipped,
+    // so a crash before a compaction drops the rotated journal is harmless
+    private void applyJournalRecord(String type, CsvRow record) {
+        try {
+            switch (type) {
+                case "USER": {
+                    Person u = parseUser(record, 1);
+                    if (u != null) insertUser(u);
+                    break;
+                }
+                case "BOOK": {
+                    Book b = parseBook(record, 1);
+                    if (b != null) insertBook(b);
+                    break;
+                }
+                case "CATEGORY": {
+                    Category c = parseCategory(record, 1);
+                    if (c != null) insertCategory(c);
+                    break;
+                }
+                case "STOCK":
+                    if (record.size() == 3) applyStock(record.getString(1), record.getInt(2));
+                    break;
+                case "PRICE":
+                    if (record.size() == 3) applyPrice(record.getString(1), record.getDouble(2));
+                    break;
+                case "LEDGER":
+                    if (record.size() == 2) ledgerLength = Long.parseLong(record.getString(1));
+                    break;
+                default: System.out.println("Skipping unknown journal record: " + type);
+            }
+        } catch (NumberFormatException e) { System.out.println("Skipping bad journal record: " + e.getMessage()); }
+    }
+
+    // Queue a change's journal record. Called under the write lock together
+    // with the change, so the journal lists changes in the order they were
+    // made. Returns the number to pass to durable(); 0 in write-behind mode,
+    // where the change is only marked dirty.
+    private long log(String type, String record) {
+        if (flusher != null) { flusher.markDirty(); return 0; }
+        return journal.append(type, record);
+    }
+
+    private long logAll(String type, List<String> records) {
+        if (records.isEmpty()) return 0;
+        if (flusher != null) { flusher.markDirty(); return 0; }
+        return journal.appendAll(type, records);
+    }
+
+    // Make a change and queue its record under one hold of the write lock;
+    // returns the record's number, or -1 if nothing changed
+    private long logged(BooleanSupplier change, String type, Supplier<String> record) {
+        lock.writeLock().lock();
+        try { return change.getAsBoolean() ? log(type, record.get()) : -1; }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    // Wait (without the write lock) until record 'seq' is on disk, and have
+    // the journal folded into the snapshot in the background once it grows
+    // too long. If the journal cannot be written the change stays in memory
+    // (readers and listeners already have it), this throws
+    // UncheckedIOException, and a compaction is queued to save it with
+    // everything else.
+    private void durable(long seq) {
+        if (seq <= 0) return;
+        try { journal.sync(seq); }
+        catch (UncheckedIOException e) { compactLater(); throw e; }
+        if (journal.size() >= COMPACT_AFTER) compactLater();
+    }
+
+    // ----- LOCKING HELPERS -----
+    // Apply one change under the write lock and publish it if it happened
+    private boolean write(BooleanSupplier change) {
+        lock.writeLock().lock();
+        try {
+            boolean changed = change.getAsBoolean();
+            if (changed) publish();
+            return changed;
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    // Hand readers a new snapshot; the user and category lists only change by
+    // growing, so they are re-copied only when they did
+    private void publish() {
+        publishedStats = stats.copy();
+        published = columns.snapshot(catalogVersion);
+        if (userList.size() != users.size()) userList = Collections.unmodifiableList(new ArrayList<>(users));
+        if (categoryList.size() != categories.size()) categoryList = Collections.unmodifiableList(new ArrayList<>(categories));
+    }
+
+    // Run a price or stock index lookup for 'snap', or return null (the
+    // caller scans the snapshot) if a writer holds or is waiting for the
+    // lock, or the indexes have moved on since 'snap'
+    private <T> T probe(BookColumns.Snapshot snap, Supplier<T> body) {
+        if (lock.isWriteLocked() || lock.hasQueuedThreads() || !lock.readLock().tryLock()) return null;
+        try { return published == snap ? body.get() : null; }
+        finally { lock.readLock().unlock(); }
+    }
+
+    // A book's ordinal if it is in 'snap', else -1 (also for a book whose
+    // add is still under way)
+    private int ordinalOf(BookColumns.Snapshot snap, String bookId) {
+        Integer ordinal = bookIndex.get(bookId);
+        return ordinal == null || ordinal >= snap.size() ? -1 : ordinal;
+    }
+
+    // ----- INDEXED INSERTS -----
+    // Every add goes through these so the lists and indexes never disagree;
+    // they return false when the key is already taken
+    private boolean insertUser(Person user) {
+        return write(() -> {
+            if (userIndex.putIfAbsent(user.getUsername(), user) != null) return false;
+            users.add(user);
+            return true;
+        });
+    }
+
+    // The book's fields are copied into the columns; the object itself is not kept
+    private boolean insertBook(Book book) {
+        return write(() -> {
+            int ordinal = columns.size();
+            if (!bookIndex.put(book.getBookId(), ordinal)) return false;
+            int code = categoryDict.code(book.getCategory());
+            long cents = cents(book.getPrice());
+            columns.add(book.getBookId(), book.getTitle(), book.getAuthor(), code, cents, book.getStockQuantity());
+            categoryDict.addBook(ordinal, code);
+            textIndex.add(ordinal, book.getTitle(), book.getAuthor());
+            if (trigramIndex != null) trigramIndex.add(ordinal, book.getTitle(), book.getAuthor());
+            priceIndex.add(cents, ordinal);
+            stockIndex.add(book.getStockQuantity(), ordinal);
+            counters.set(ordinal, book.getStockQuantity());
+            stats.addBook(code, categoryDict.name(code), cents, book.getStockQuantity());
+            catalogVersion++;
+            return true;
+        });
+    }
+
+    private boolean insertCategory(Category cat) {
+        return write(() -> {
+            if (!categoryIndex.put(cat.getCategoryId(), cat)) return false;
+            categories.add(cat);
+            int code = categoryDict.code(cat.getCategoryName());
+            stats.category(code, categoryDict.name(code));
+            catalogVersion++;
+            return true;
+        });
+    }
+
+    // ----- USER OPERATIONS -----
+    public Person authenticate(String username, String password) {
+        Person user = userIndex.get(username);
+        if (user != null && user.getPassword().equals(password)) return user;
+        return null;
+    }
+
+    public synchronized boolean addUser(Person user) {
+        long seq = logged(() -> insertUser(user), "USER", () -> userToCSV(user));
+        if (seq < 0) return false;
+        feed.publish(CatalogEvent.userAdded(user));
+        durable(seq);
+        return true;
+    }
+
+    public Person getUser(String username) { return userIndex.get(username); }
+
+    // ----- BOOK OPERATIONS -----
+    // Returns false if a book with the same ID already exists
+    public synchronized boolean addBook(Book book) {
+        long seq = logged(() -> insertBook(book), "BOOK", book::toCSV);
+        if (seq < 0) return false;
+        feed.publish(CatalogEvent.bookAdded(getBookById(book.getBookId())));
+        durable(seq);
+        return true;
+    }
+
+    public Book getBookById(String bookId) {
+        BookColumns.Snapshot snap = published;
+        int ordinal = ordinalOf(snap, bookId);
+        return ordinal < 0 ? null : snap.get(ordinal);
+    }
+
+    // Books are never removed, so a book's position is its ordinal
+    public int indexOf(String bookId) { return ordinalOf(published, bookId); }
+
+    // Stock and price change through here, also from the catalog books' setters.
+    // Sales may be in flight, so the new count is applied as a change to the
+    // live counter and the journal gets the resulting catalog figure
+    public synchronized boolean updateStock(String bookId, int stock) {
+        int[] committed = new int[1];
+        long seq = logged(() -> write(() -> {
+            Integer ordinal = bookIndex.get(bookId);
+            if (ordinal == null) return false;
+            committed[0] = moveStock(ordinal, stock - counters.getAndSet(ordinal, stock));
+            return true;
+        }), "STOCK", () -> CsvFile.quote(bookId) + "," + committed[0]);
+        if (seq < 0) return false;
+        feed.publish(CatalogEvent.stockChanged(getBookById(bookId)));
+        durable(seq);
+        return true;
+    }
+
+    public synchronized boolean updatePrice(String bookId, double price) {
+        long seq = logged(() -> applyPrice(bookId, price), "PRICE", () -> CsvFile.quote(bookId) + "," + price);
+        if (seq < 0) return false;
+        feed.publish(CatalogEvent.priceChanged(getBookById(bookId)));
+        durable(seq);
+        return true;
+    }
+
+    // Journal replay only; no sales are in flight yet
+    private boolean applyStock(String bookId, int stock) {
+        return write(() -> {
+            Integer ordinal = bookIndex.get(bookId);
+            if (ordinal == null) return false;
+            moveStock(ordinal, stock - columns.stock(ordinal));
+            counters.set(ordinal, stock);
+            return true;
+        });
+    }
+
+    // Change a book's catalog stock by 'delta' (under the write lock); returns the new figure
+    private int moveStock(int ordinal, int delta) {
+        int before = columns.stock(ordinal), after = before + delta;
+        if (delta == 0) return after;
+        stockIndex.move(before, after, ordinal);
+        stats.stockChanged(columns.categoryCode(ordinal), columns.priceCents(ordinal), before, after);
+        columns.setStock(ordinal, after);
+        catalogVersion++;
+        return after;
+    }
+
+    private boolean applyPrice(String bookId, double price) {
+        return write(() -> {
+            Integer ordinal = bookIndex.get(bookId);
+            if (ordinal == null) return false;
+            movePrice(ordinal, cents(price));
+            return true;
+        });
+    }
+
+    // Set a book's price (under the write lock)
+    private void movePrice(int ordinal, long cents) {
+        long before = columns.priceCents(ordinal);
+        if (cents == before) return;
+        priceIndex.move(before, cents, ordinal);
+        stats.priceChanged(columns.categoryCode(ordinal), columns.stock(ordinal), before, cents);
+        columns.setPriceCents(ordinal, cents);
+        catalogVersion++;
+    }
+
+    // ----- VERSIONED UPDATES -----
+    // Optimistic edit of one book: 'mutator' changes a private copy (price
+    // and stock only) with no lock held, and the change is applied only if
+    // the record is still at 'expectedVersion' (see Book.getVersion()).
+    // Returns false on a conflict; the caller re-reads and tries again.
+    // A stock change is applied as a difference, so sales still on their
+    // way to the catalog are kept.
+    public boolean updateBook(String bookId, int expectedVersion, Consumer<Book> mutator) {
+        BookColumns.Snapshot snap = published;
+        int ordinal = ordinalOf(snap, bookId);
+        if (ordinal < 0) throw new IllegalArgumentException("Book not found: " + bookId);
+        if (snap.recordVersion(ordinal) != expectedVersion) { updateConflicts.incrementAndGet(); return false; }
+
+        Book before = snap.get(ordinal);
+        Book edit = new Book(before.getBookId(), before.getTitle(), before.getAuthor(), before.getCategory(),
+                before.getPrice(), before.getStockQuantity());
+        mutator.accept(edit);
+        if (!edit.getBookId().equals(before.getBookId()) || !edit.getTitle().equals(before.getTitle())
+                || !edit.getAuthor().equals(before.getAuthor()) || !edit.getCategory().equals(before.getCategory()))
+            throw new IllegalArgumentException("Only price and stock can be updated");
+        if (edit.getPrice() <= 0 || edit.getStockQuantity() < 0)
+            throw new IllegalArgumentException("Price must be positive and stock cannot be negative");
+        if (commitEdit(ordinal, expectedVersion, edit.getStockQuantity() - before.getStockQuantity(), cents(edit.getPrice())))
+            return true;
+        updateConflicts.incrementAndGet();
+        return false;
+    }
+
+    // The version check, the move and the journal records all happen in one
+    // hold of the write lock, with no other lock taken; the fsync comes
+    // after it is released, so concurrent edits share it.
+    private boolean commitEdit(int ordinal, int expectedVersion, int stockDelta, long cents) {
+        boolean[] priceChanged = new boolean[1];
+        long[] seq = new long[1];
+        boolean committed = write(() -> {
+            if (columns.recordVersion(ordinal) != expectedVersion) return false;
+            if (stockDelta < 0 && !counters.take(ordinal, -stockDelta)) return false; // sold in the meantime
+            if (stockDelta > 0) counters.give(ordinal, stockDelta);
+            priceChanged[0] = cents != columns.priceCents(ordinal);
+            int stock = moveStock(ordinal, stockDelta);
+            movePrice(ordinal, cents);
+            String id = CsvFile.quote(published.id(ordinal));
+            if (stockDelta != 0) seq[0] = log("STOCK", id + "," + stock);
+            if (priceChanged[0]) seq[0] = log("PRICE", id + "," + cents / 100.0);
+            return true;
+        });
+        if (!committed) return false;
+        if (stockDelta != 0) feed.publish(CatalogEvent.stockChanged(published.get(ordinal)));
+        if (priceChanged[0]) feed.publish(CatalogEvent.priceChanged(published.get(ordinal)));
+        durable(seq[0]);
+        return true;
+    }
+
+    // updateBook with the latest version, repeated while other writers get
+    // there first; false if it still conflicts after 'attempts' tries
+    public boolean updateBookWithRetry(String bookId, Consumer<Book> mutator, int attempts) {
+        for (int i = 0; i < attempts; i++) {
+            Book current = getBookById(bookId);
+            if (current == null) throw new IllegalArgumentException("Book not found: " + bookId);
+            if (updateBook(bookId, current.getVersion(), mutator)) return true;
+            Thread.yield();
+        }
+        return false;
+    }
+
+    static long cents(double price) { return Math.round(price * 100); }
+
+    // ----- POINT OF SALE -----
+    // Stock a till can sell right now (includes sales not yet in the catalog); -1 if unknown
+    public int getLiveStock(String bookId) {
+        // Counters grow before a book is published, so any book in the
+        // snapshot has one
+        int ordinal = ordinalOf(published, bookId);
+        return ordinal < 0 ? -1 : counters.get(ordinal);
+    }
+
+    // Sell a cart (BookID -> quantity). Copies are taken book by book with
+    // compare-and-set, so tills never wait on each other; if any book runs
+    // short, the copies already taken are put back and nothing is sold.
+    // Returns once the sale is in the sales log and the catalog; if the log
+    // cannot be written the copies are put back and the sale fails.
+    public Sale checkout(Person cashier, Map<String, Integer> cart) {
+        if (cart.isEmpty()) throw new IllegalArgumentException("Cart is empty");
+        BookColumns.Snapshot snap = published;
+        List<SaleLine> lines = new ArrayList<>(cart.size());
+        for (Map.Entry<String, Integer> e : cart.entrySet()) {
+            int ordinal = ordinalOf(snap, e.getKey());
+            if (ordinal < 0) throw new IllegalArgumentException("Book not found: " + e.getKey());
+            if (e.getValue() <= 0) throw new IllegalArgumentException("Quantity must be positive: " + e.getKey());
+            lines.add(new SaleLine(e.getKey(), snap.title(ordinal), e.getValue(), snap.price(ordinal), ordinal));
+        }
+
+        for (int i = 0; i < lines.size(); i++) {
+            SaleLine line = lines.get(i);
+            if (counters.take(line.ordinal, line.getQuantity())) continue;
+            for (int j = 0; j < i; j++) counters.give(lines.get(j).ordinal, lines.get(j).getQuantity());
+            throw new IllegalStateException("Only " + counters.get(line.ordinal) + " left of " + line.getBookId()
+                    + " (" + line.getTitle() + ")");
+        }
+
+        Sale sale = new Sale(salesLog.nextSaleId(), cashier.getUsername(), System.currentTimeMillis(), lines);
+        try {
+            salesLog.record(sale);
+        } catch (IOException e) {
+            for (SaleLine line : lines) counters.give(line.ordinal, line.getQuantity());
+            throw new IllegalStateException("The sale could not be recorded, nothing was sold: " + e.getMessage());
+        }
+        return sale;
+    }
+
+    // Called by the sales log once a batch is on disk: apply the stock
+    // changes under one write lock and journal them, with the ledger's new
+    // length, in one fsync
+    private synchronized void commitSales(List<Sale> batch, long ledgerEnd) {
+        List<String> records = new ArrayList<>();
+        long[] seq = new long[1];
+        write(() -> {
+            for (Sale sale : batch)
+                for (SaleLine line : sale.getLines()) {
+                    int after = moveStock(line.ordinal, -line.getQuantity());
+                    records.add(CsvFile.quote(line.getBookId()) + "," + after);
+                }
+            logAll("STOCK", records);
+            ledgerLength = ledgerEnd;
+            seq[0] = log("LEDGER", String.valueOf(ledgerEnd));
+            return true;
+        });
+        BookColumns.Snapshot snap = published;
+        for (Sale sale : batch)
+            for (SaleLine line : sale.getLines()) feed.publish(CatalogEvent.stockChanged(snap.get(line.ordinal)));
+        durable(seq[0]);
+    }
+
+    // A range that covers a large share of the catalog is cheaper to scan
+    // column by column (already in catalog order) than to gather and re-sort
+    static final int SCAN_RATIO = 4;
+
+    private int[] priceRange(BookColumns.Snapshot snap, long min, long max) {
+        int[] hits = probe(snap, () -> (long) priceIndex.count(min, max) * SCAN_RATIO > snap.size() ? null : priceIndex.range(min, max));
+        return hits != null ? hits : snap.scanPrice(min, max);
+    }
+
+    private int[] stockRange(BookColumns.Snapshot snap, int min, int max) {
+        int[] hits = probe(snap, () -> (long) stockIndex.count(min, max) * SCAN_RATIO > snap.size() ? null : stockIndex.range(min, max));
+        return hits != null ? hits : snap.scanStock(min, max);
+    }
+
+    // ----- RESULT CACHE -----
+    // Search results are shared between callers, so they are read-only.
+    // Each is computed from one snapshot and cached under its version, so
+    // an entry always matches the catalog it was computed from.
+    private List<Book> cached(String key, Function<BookColumns.Snapshot, List<Book>> compute) {
+        BookColumns.Snapshot snap = published;
+        List<Book> hit = cache.get(key, snap.version());
+        if (hit != null) return hit;
+        List<Book> result = Collections.unmodifiableList(compute.apply(snap));
+        cache.put(key, snap.version(), result);
+        return result;
+    }
+
+    private static String wordsKey(String text) { return String.join(" ", TextIndex.tokenize(text)); }
+
+    public long getCatalogVersion() { return published.version(); }
+    public void addCatalogListener(CatalogListener l) { feed.addListener(l); }
+    public void removeCatalogListener(CatalogListener l) { feed.removeListener(l); }
+    public long getCacheHits() { return cache.hits(); }
+    public long getCacheMisses() { return cache.misses(); }
+    public long getUpdateConflicts() { return updateConflicts.get(); }
+
+    // Word search over titles and authors, best matches first
+    public List<Book> searchByName(String name) { return searchText(name); }
+
+    // Every query word must match (as a whole word or a word prefix) somewhere
+    // in the title or author; ties keep catalog order
+    public List<Book> searchText(String query) {
+        return cached("text:" + wordsKey(query), snap -> {
+            int[] hits = textIndex.search(query, snap.size());
+            if (hits == null) return snap.asList();
+            return rankByText(snap, hits, TextIndex.tokenize(query));
+        });
+    }
+
+    // Typo-tolerant word search; see searchFuzzy(String, int)
+    public List<Book> searchFuzzy(String query) { return searchFuzzy(query, -1); }
+
+    // Every query word must be within 'maxEdits' edits of some title or author
+    // word (-1 = 1 edit for words up to 4 letters, 2 for longer ones).
+    // Closest matches first, then most shared trigrams
+    public List<Book> searchFuzzy(String query, int maxEdits) {
+        // Stand-in results from before the index was ready are cached apart
+        String kind = trigramIndex == null ? "fuzzy-pending:" : "fuzzy:";
+        return cached(kind + maxEdits + ":" + wordsKey(query), snap -> fuzzyMatches(snap, query, maxEdits));
+    }
+
+    // Until the trigram index is ready (just after start-up) the exact word
+    // matches are returned instead
+    private List<Book> fuzzyMatches(BookColumns.Snapshot snap, String query, int maxEdits) {
+        String[] words = TextIndex.tokenize(query);
+        if (words.length == 0) return new ArrayList<>();
+        TrigramIndex index = trigramIndex;
+        if (index == null) return rankByText(snap, textIndex.search(query, snap.size()), words);
+        int[] candidates = index.candidates(query, snap.size());
+
+        List<Book> result = new ArrayList<>();
+        List<Integer> distances = new ArrayList<>();
+        for (int ordinal : candidates) {
+            String title = snap.title(ordinal), author = snap.author(ordinal);
+            int total = 0;
+            for (String w : words) {
+                int max = maxEdits >= 0 ? maxEdits : (w.length() <= 4 ? 1 : 2);
+                int d = Math.min(TrigramIndex.bestDistance(w, title, max),
+                        TrigramIndex.bestDistance(w, author, max));
+                if (d > max) { total = -1; break; }
+                total += d;
+            }
+            if (total < 0) continue;
+            result.add(snap.get(ordinal));
+            distances.add(total);
+        }
+
+        // Candidates arrive best-overlap first, so a stable sort by distance keeps that as the tie-break
+        Integer[] order = new Integer[result.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(distances::get));
+        List<Book> ranked = new ArrayList<>(order.length);
+        for (int i : order) ranked.add(result.get(i));
+        return ranked;
+    }
+
+    // searchText(query) answered from the results of an earlier, broader
+    // query taken at catalog version 'previousVersion'; falls back to a full
+    // search when the query does not narrow or the catalog has changed since
+    public List<Book> refineText(List<Book> previous, String previousQuery, long previousVersion, String query) {
+        String[] before = TextIndex.tokenize(previousQuery), after = TextIndex.tokenize(query);
+        if (previous == null || previousVersion != published.version() || before.length == 0
+                || !TextIndex.narrows(before, after)) return searchText(query);
+        return cached("text:" + String.join(" ", after), snap -> {
+            IntList hits = new IntList();
+            for (Book b : previous) {
+                int o = ordinalOf(snap, b.getBookId());
+                if (o >= 0 && TextIndex.matches(after, snap.title(o), snap.author(o))) hits.add(o);
+            }
+            int[] ordinals = hits.toArray();
+            Arrays.sort(ordinals); // ties rank in catalog order, as in searchText
+            return rankByText(snap, ordinals, after);
+        });
+    }
+
+    // Scores are small integers, so a stable bucket pass orders them in O(k)
+    private List<Book> rankByText(BookColumns.Snapshot snap, int[] hits, String[] words) {
+        int[] scores = new int[hits.length];
+        int max = 0;
+        for (int i = 0; i < hits.length; i++) {
+            scores[i] = TextIndex.score(words, snap.title(hits[i]), snap.author(hits[i]));
+            max = Math.max(max, scores[i]);
+        }
+        int[] start = new int[max + 2];
+        for (int sc : scores) start[max - sc + 1]++;
+        for (int i = 1; i < start.length; i++) start[i] += start[i - 1];
+        Book[] ranked = new Book[hits.length];
+        for (int i = 0; i < hits.length; i++) ranked[start[max - scores[i]]++] = snap.get(hits[i]);
+        return new ArrayList<>(Arrays.asList(ranked));
+    }
+
+    // Books whose category name contains the text; only the matching
+    // categories' posting lists are touched
+    public List<Book> searchByCategory(String category) {
+        // The key and the lookup must see the same text, or a padded query
+        // would cache its (different) answer under the plain one's key
+        String needle = category.trim().toLowerCase(Locale.ROOT);
+        return cached("category:" + needle, snap -> {
+            List<PostingList> lists = new ArrayList<>();
+            for (int code : categoryDict.matching(needle)) lists.add(categoryDict.postings(code));
+            if (lists.isEmpty()) return new ArrayList<>();
+            return snap.booksAt(PostingList.union(lists, snap.size()));
+        });
+    }
+
+    // Number of books in a category (exact name, any case)
+    public int countByCategory(String categoryName) {
+        BookColumns.Snapshot snap = published;
+        int code = categoryDict.find(categoryName);
+        return code < 0 ? 0 : categoryDict.count(code, snap.size());
+    }
+
+    // Range searches run on the sorted indexes; results are in catalog order
+    public List<Book> searchByPrice(double maxPrice) { return searchByPrice(Double.NEGATIVE_INFINITY, maxPrice); }
+
+    public List<Book> searchByPrice(double minPrice, double maxPrice) {
+        long min = minPrice == Double.NEGATIVE_INFINITY ? Long.MIN_VALUE : cents(minPrice);
+        long max = maxPrice == Double.POSITIVE_INFINITY ? Long.MAX_VALUE : cents(maxPrice);
+        return cached("price:" + min + ":" + max, snap -> snap.booksAt(priceRange(snap, min, max)));
+    }
+
+    public List<Book> searchByStock(int minStock) { return searchByStock(minStock, Integer.MAX_VALUE); }
+
+    public List<Book> searchByStock(int minStock, int maxStock) {
+        return cached("stock:" + minStock + ":" + maxStock, snap -> snap.booksAt(stockRange(snap, minStock, maxStock)));
+    }
+
+    // ----- COMPOSITE QUERIES -----
+    // One condition of a query as the planner sees it
+    private static class Condition {
+        final int estimate;             // how many books it matches
+        final boolean exact;            // estimate is the true count (not a stand-in)
+        final Supplier<int[]> postings; // those books' ordinals, ascending
+        final IntPredicate test;        // the same condition for a single ordinal; null = always intersect
+
+        Condition(int estimate, boolean exact, Supplier<int[]> postings, IntPredicate test) {
+            this.estimate = estimate;
+            this.exact = exact;
+            this.postings = postings;
+            this.test = test;
+        }
+    }
+
+    // A condition's list is intersected only while it is at most this many
+    // times the size of the running result; bigger ones are checked row by row
+    static final int INTERSECT_RATIO = 4;
+
+    // All conditions must hold; text queries come back ranked, others in catalog order
+    public List<Book> query(BookQuery q) {
+        return cached("query:" + q.cacheKey(), snap -> {
+            int[] hits = queryOrdinals(snap, q);
+            return q.hasText() ? rankByText(snap, hits, TextIndex.tokenize(q.getText())) : snap.booksAt(hits);
+        });
+    }
+
+    // Start from the most selective index, then narrow by intersecting
+    // posting lists or, for much larger ones, by checking each survivor
+    int[] queryOrdinals(BookColumns.Snapshot snap, BookQuery q) {
+        List<Condition> conditions = conditionsOf(snap, q);
+        if (conditions.isEmpty()) return IntStream.range(0, snap.size()).toArray();
+        conditions.sort(Comparator.comparingInt(c -> c.estimate));
+
+        int[] result = conditions.get(0).postings.get();
+        for (int i = 1; i < conditions.size() && result.length > 0; i++) {
+            Condition c = conditions.get(i);
+            if (c.test == null || c.estimate <= INTERSECT_RATIO * result.length) {
+                int[] other = c.postings.get();
+                result = IntList.intersect(result, result.length, other, other.length);
+            } else {
+                int n = 0;
+                for (int ordinal : result) if (c.test.test(ordinal)) result[n++] = ordinal;
+                result = Arrays.copyOf(result, n);
+            }
+        }
+        return result;
+    }
+
+    // ----- AD-HOC FILTERS -----
+    // Any condition no index covers, e.g. for reports; big catalogs are
+    // split across cores (see ParallelScan). Results are in catalog order.
+    // They scan one published snapshot and take no lock.
+    public List<Book> filter(Predicate<Book> test) {
+        BookColumns.Snapshot snap = published;
+        return snap.booksAt(ParallelScan.filter(snap.size(), o -> test.test(snap.get(o))));
+    }
+
+    public int count(Predicate<Book> test) {
+        BookColumns.Snapshot snap = published;
+        return ParallelScan.filter(snap.size(), o -> test.test(snap.get(o))).length;
+    }
+
+    // ----- COUNTS, PAGES AND TOP-K -----
+    // A single condition's estimate is exact, so only multi-condition
+    // queries run the planner, and even then no Book list is built
+    public int count(BookQuery q) {
+        BookColumns.Snapshot snap = published;
+        List<Condition> conditions = conditionsOf(snap, q);
+        if (conditions.isEmpty()) return snap.size();
+        if (conditions.size() == 1 && conditions.get(0).exact) return conditions.get(0).estimate;
+        return queryOrdinals(snap, q).length;
+    }
+
+    // Results [offset, offset + limit) in the same order as query(q); only
+    // the books on the page are looked up, except for ranked text queries
+    public ResultPage page(BookQuery q, int offset, int limit) {
+        if (q.hasText()) return ResultPage.of(query(q), offset, limit);
+        BookColumns.Snapshot snap = published;
+        int[] hits = queryOrdinals(snap, q);
+        int from = Math.min(Math.max(offset, 0), hits.length);
+        int to = (int) Math.min((long) from + Math.max(limit, 0), hits.length);
+        return new ResultPage(snap.booksAt(Arrays.copyOfRange(hits, from, to)), from, hits.length);
+    }
+
+    // Keyset paging in catalog order: the page after the book with ID
+    // 'afterBookId' (null = first page). Text matches are not ranked here, so
+    // a page stays put while books are added or other pages are read.
+    public ResultPage pageAfter(BookQuery q, String afterBookId, int limit) {
+        BookColumns.Snapshot snap = published;
+        int[] hits = queryOrdinals(snap, q);
+        int from = 0;
+        if (afterBookId != null) {
+            int after = ordinalOf(snap, afterBookId);
+            if (after >= 0) {
+                int pos = Arrays.binarySearch(hits, after);
+                from = pos >= 0 ? pos + 1 : -pos - 1;
+            }
+        }
+        int to = (int) Math.min((long) from + Math.max(limit, 0), hits.length);
+        return new ResultPage(snap.booksAt(Arrays.copyOfRange(hits, from, to)), from, hits.length);
+    }
+
+    static final Comparator<Book> BY_PRICE = Comparator.comparingDouble(Book::getPrice);
+    static final Comparator<Book> BY_STOCK = Comparator.comparingInt(Book::getStockQuantity);
+
+    // The k smallest matches under 'order' (ties in catalog order), kept in a
+    // bounded max-heap so only k books are ever held
+    public List<Book> top(BookQuery q, Comparator<Book> order, int k) { return top(published, q, order, k); }
+
+    private List<Book> top(BookColumns.Snapshot snap, BookQuery q, Comparator<Book> order, int k) {
+        if (k <= 0) return new ArrayList<>();
+        Comparator<Integer> byOrder = (a, b) -> {
+            int c = order.compare(snap.get(a), snap.get(b));
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.min(k, 1024) + 1, byOrder.reversed());
+        for (int ordinal : queryOrdinals(snap, q)) {
+            if (heap.size() < k) heap.add(ordinal);
+            else if (byOrder.compare(ordinal, heap.peek()) < 0) { heap.poll(); heap.add(ordinal); }
+        }
+        int[] out = new int[heap.size()];
+        for (int i = out.length - 1; i >= 0; i--) out[i] = heap.poll();
+        return snap.booksAt(out);
+    }
+
+    public List<Book> cheapest(BookQuery q, int k) {
+        long min = q.getMinPrice() == Double.NEGATIVE_INFINITY ? Long.MIN_VALUE : cents(q.getMinPrice());
+        long max = q.getMaxPrice() == Double.POSITIVE_INFINITY ? Long.MAX_VALUE : cents(q.getMaxPrice());
+        return smallest(q, k, priceIndex, min, max, BY_PRICE);
+    }
+
+    public List<Book> lowestStock(BookQuery q, int k) {
+        return smallest(q, k, stockIndex, q.getMinStock(), q.getMaxStock(), BY_STOCK);
+    }
+
+    // Broad queries walk the sorted index from its low end and stop after k
+    // matches; narrow ones (or any, while a writer has the index) are
+    // cheaper to collect and push through the heap
+    static final int WALK_RATIO = 8;
+
+    private List<Book> smallest(BookQuery q, int k, RangeIndex index, long min, long max, Comparator<Book> order) {
+        BookColumns.Snapshot snap = published;
+        List<Condition> conditions = conditionsOf(snap, q);
+        int narrowest = snap.size();
+        for (Condition c : conditions) narrowest = Math.min(narrowest, c.estimate);
+        if ((long) narrowest * WALK_RATIO < snap.size()) return top(snap, q, order, k);
+
+        IntPredicate accept = o -> true;
+        for (Condition c : conditions) {
+            if (c.test != null) { accept = accept.and(c.test); continue; }
+            int[] hits = c.postings.get();
+            accept = accept.and(o -> Arrays.binarySearch(hits, o) >= 0);
+        }
+        IntPredicate inSnapshot = accept;
+        int[] first = probe(snap, () -> index.first(min, max, k, inSnapshot));
+        return first != null ? snap.booksAt(first) : top(snap, q, order, k);
+    }
+
+    // Price and stock estimates come from the range indexes when they are
+    // free; otherwise the whole catalog is assumed, so the planner checks
+    // those conditions row by row rather than collecting them
+    private List<Condition> conditionsOf(BookColumns.Snapshot snap, BookQuery q) {
+        List<Condition> out = new ArrayList<>();
+        if (q.hasText()) {
+            int[] hits = textIndex.search(q.getText(), snap.size()); // already exact, so always intersected
+            if (hits != null) out.add(new Condition(hits.length, true, () -> hits, null));
+        }
+        if (q.hasCategory()) {
+            List<PostingList> lists = new ArrayList<>();
+            boolean[] wanted = new boolean[snap.categoryCount()];
+            int estimate = 0;
+            int exact = categoryDict.find(q.getCategory());
+            List<Integer> codes = exact >= 0 ? Collections.singletonList(exact) : categoryDict.matching(q.getCategory());
+            for (int code : codes) {
+                if (code >= wanted.length) continue; // registered after this snapshot, so no books in it
+                lists.add(categoryDict.postings(code));
+                wanted[code] = true;
+                estimate += categoryDict.count(code, snap.size());
+            }
+            out.add(new Condition(estimate, true, () -> lists.isEmpty() ? new int[0] : PostingList.union(lists, snap.size()),
+                    o -> wanted[snap.categoryCode(o)]));
+        }
+        if (q.hasPrice()) {
+            long min = q.getMinPrice() == Double.NEGATIVE_INFINITY ? Long.MIN_VALUE : cents(q.getMinPrice());
+            long max = q.getMaxPrice() == Double.POSITIVE_INFINITY ? Long.MAX_VALUE : cents(q.getMaxPrice());
+            Integer count = probe(snap, () -> priceIndex.count(min, max));
+            out.add(new Condition(count != null ? count : snap.size(), count != null, () -> priceRange(snap, min, max), o -> {
+                long c = snap.priceCents(o);
+                return c >= min && c <= max;
+            }));
+        }
+        if (q.hasStock()) {
+            int min = q.getMinStock(), max = q.getMaxStock();
+            Integer count = probe(snap, () -> stockIndex.count(min, max));
+            out.add(new Condition(count != null ? count : snap.size(), count != null, () -> stockRange(snap, min, max), o -> {
+                int s = snap.stock(o);
+                return s >= min && s <= max;
+            }));
+        }
+        return out;
+    }
+
+    // ----- CATEGORY OPERATIONS -----
+    // Returns false if a category with the same ID already exists
+    public synchronized boolean addCategory(Category cat) {
+        long seq = logged(() -> insertCategory(cat), "CATEGORY", cat::toCSV);
+        if (seq < 0) return false;
+        feed.publish(CatalogEvent.categoryAdded(cat));
+        durable(seq);
+        return true;
+    }
+
+    public Category getCategoryById(String categoryId) { return categoryIndex.get(categoryId); }
+
+    // ----- GETTERS -----
+    // Immutable snapshots: safe to iterate while other threads make changes
+    public List<Book> getAllBooks() { return published.asList(); }
+    public List<Category> getAllCategories() { return categoryList; }
+    public List<Person> getAllUsers() { return userList; }
+
+    // ----- AGGREGATES (kept current on every change, never scanned) -----
+    // A copy made with each change and shared by all readers until the next;
+    // it stays consistent while the catalog changes, and must not be modified
+    public CatalogStats getStats() { return publishedStats; }
+    public long getTotalStock() { return publishedStats.getUnits(); }
+    public double getTotalValue() { return publishedStats.getValue(); }
+
+    // ----- ID GENERATORS -----
+    // Next number after the highest ID ever added (never re-scans the data)
+    public String generateBookId() { return String.format("BK%03d", bookIndex.nextNumber()); }
+
+    public String generateCategoryId() { return String.format("CAT%03d", categoryIndex.nextNumber()); }
+}
+
+// =====================================================
+// CONTENTION STRESS - Readers, tills and a writer on one catalog
+// =====================================================
+// Run with: java CityBookshop --stress [seconds]
+// Works on a throwaway catalog in a temporary directory. Reader threads
+// search while tills sell and a writer restocks, reprices and adds books.
+// Every result is checked against its own query, and at the end the stock
+// must add up: starting units + restocked + added - sold. Prints reader
+// latencies and exits non-zero on any failure.
+class ContentionStress {
+    static final int BOOKS = 50000;
+    static final int TILLS = 2;
+
+    private final AtomicLong sold = new AtomicLong(), added = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong(), sales = new AtomicLong(), writes = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final ConcurrentLinkedQueue<long[]> latencies = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private DataManager data;
+    private long startUnits;
+
+    public static void main(int seconds) {
+        try {
+            File dir = Files.createTempDirectory("bookshop-stress").toFile();
+            System.setProperty("bookshop.dataDir", dir.getPath());
+            boolean ok = new ContentionStress().run(seconds);
+            System.exit(ok ? 0 : 1);
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Error running stress test: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    boolean run(int seconds) throws InterruptedException, IOException {
+        data = new DataManager(200); // write-behind, so the writer is bound by memory, not fsync
+        Random seed = new Random(42);
+        for (int i = 0; i < BOOKS; i++)
+            data.addBook(new Book(String.format("BK%06d", 100000 + i), "Title " + word(seed) + " " + word(seed),
+                    "Author " + word(seed), "Category " + (i % 12), 100 + seed.nextInt(5000), seed.nextInt(20)));
+        startUnits = data.getTotalStock();
+
+        int readers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) threads.add(new Thread(this::reader, "stress-reader-" + i));
+        for (int i = 0; i < TILLS; i++) threads.add(new Thread(this::till, "stress-till-" + i));
+        threads.add(new Thread(this::writer, "stress-writer"));
+        for (Thread t : threads) t.start();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : threads) t.join();
+        data.flush();
+
+        checkTotals();
+        report(readers, seconds);
+        data.close();
+        return failures.get() == 0;
+    }
+
+    private static String word(Random r) {
+        StringBuilder w = new StringBuilder();
+        for (int i = 3 + r.nextInt(5); i > 0; i--) w.append((char) ('a' + r.nextInt(26)));
+        return w.toString();
+    }
+
+    // Random searches, each result checked against its own condition
+    private void reader() {
+        Random r = new Random();
+        long[] mine = new long[1 << 16];
+        int n = 0;
+        while (running) {
+            long t0 = System.nanoTime();
+            try {
+                switch (r.nextInt(8)) {
+                    case 0: {
+                        double max = 100 + r.nextInt(500);
+                        for (Book b : data.searchByPrice(max)) check(b.getPrice() <= max, "price " + b.getPrice() + " > " + max);
+                        break;
+                    }
+                    case 1: {
+                        int min = r.nextInt(3);
+                        for (Book b : data.searchByStock(0, min)) check(b.getStockQuantity() <= min, "stock " + b.getStockQuantity() + " > " + min);
+                        break;
+                    }
+                    case 2: {
+                        String prefix = String.valueOf((char) ('a' + r.nextInt(26)));
+                        String[] q = {prefix};
+                        for (Book b : data.searchText(prefix))
+                            check(TextIndex.matches(q, b.getTitle(), b.getAuthor()), b.getTitle() + " !~ " + prefix);
+                        break;
+                    }
+                    case 3: {
+                        String cat = "Category " + r.nextInt(12);
+                        BookQuery q = new BookQuery().category(cat).maxPrice(100 + r.nextInt(5000));
+                        for (Book b : data.query(q))
+                            check(b.getCategory().equals(cat) && b.getPrice() <= q.getMaxPrice(), "query " + q + " got " + b);
+                        break;
+                    }
+                    case 4: {
+                        BookQuery q = new BookQuery().minStock(5 + r.nextInt(10));
+                        ResultPage page = data.page(q, r.nextInt(100), 20);
+                        for (Book b : page.getBooks()) check(b.getStockQuantity() >= q.getMinStock(), "page " + q + " got " + b);
+                        break;
+                    }
+                    case 5: {
+                        String id = String.format("BK%06d", 100000 + r.nextInt(BOOKS));
+                        Book b = data.getBookById(id);
+                        check(b != null && b.getBookId().equals(id), "lookup " + id + " got " + b);
+                        break;
+                    }
+                    case 6: {
+                        CatalogStats s = data.getStats();
+                        long units = 0;
+                        for (CatalogStats.CategoryStats c : s.getCategories()) units += c.getUnits();
+                        check(units == s.getUnits(), "category units " + units + " != total " + s.getUnits());
+                        break;
+                    }
+                    default: {
+                        String cat = "Category " + r.nextInt(12);
+                        int count = data.count(new BookQuery().category(cat));
+                        check(count >= BOOKS / 12, "count " + cat + " = " + count);
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail("reader: " + e);
+            }
+            if (n < mine.length) mine[n++] = System.nanoTime() - t0;
+            reads.incrementAndGet();
+        }
+        latencies.add(Arrays.copyOf(mine, n));
+    }
+
+    // Sell one or two books at a time; running out of a book is expected
+    private void till() {
+        Random r = new Random();
+        Person cashier = new Cashier("stress", "stress", "Stress Till");
+        while (running) {
+            Map<String, Integer> cart = new LinkedHashMap<>();
+            for (int i = 1 + r.nextInt(2); i > 0; i--) cart.put(String.format("BK%06d", 100000 + r.nextInt(BOOKS)), 1 + r.nextInt(2));
+            try {
+                Sale sale = data.checkout(cashier, cart);
+                for (SaleLine line : sale.getLines()) sold.addAndGet(line.getQuantity());
+                sales.incrementAndGet();
+            } catch (IllegalStateException e) {
+                // sold out
+            } catch (RuntimeException e) {
+                fail("till: " + e);
+            }
+        }
+    }
+
+    // Restock (versioned), reprice and add books
+    private void writer() {
+        Random r = new Random();
+        int next = BOOKS;
+        while (running) {
+            try {
+                String id = String.format("BK%06d", 100000 + r.nextInt(BOOKS));
+                switch (r.nextInt(3)) {
+                    case 0: {
+                        int more = 1 + r.nextInt(10);
+                        if (data.updateBookWithRetry(id, b -> b.setStockQuantity(b.getStockQuantity() + more), 10))
+                            added.addAndGet(more);
+                        break;
+                    }
+                    case 1:
+                        data.updatePrice(id, 100 + r.nextInt(5000));
+                        break;
+                    default: {
+                        int stock = r.nextInt(20);
+                        if (data.addBook(new Book(String.format("BK%06d", 100000 + next++), "Added " + word(r), "Writer",
+                                "Category " + r.nextInt(12), 100 + r.nextInt(5000), stock))) added.addAndGet(stock);
+                    }
+                }
+                writes.incrementAndGet();
+            } catch (RuntimeException e) {
+                fail("writer: " + e);
+            }
+        }
+    }
+
+    private void checkTotals() {
+        long expected = startUnits + added.get() - sold.get();
+        long catalog = 0, live = 0;
+        for (Book b : data.getAllBooks()) {
+            catalog += b.getStockQuantity();
+            live += data.getLiveStock(b.getBookId());
+        }
+        check(catalog == expected, "catalog units " + catalog + ", expected " + expected);
+        check(live == expected, "live units " + live + ", expected " + expected);
+        check(data.getTotalStock() == expected, "running total " + data.getTotalStock() + ", expected " + expected);
+    }
+
+    private void report(int readers, int seconds) {
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d readers, %d tills, 1 writer, %d s: %d reads, %d sales, %d writes%n",
+                readers, TILLS, seconds, reads.get(), sales.get(), writes.get());
+        if (all.length > 0)
+            System.out.printf("read latency: p50 %d us, p99 %d us, max %d us%n", all[all.length / 2] / 1000,
+                    all[(int) (all.length * 0.99)] / 1000, all[all.length - 1] / 1000);
+        System.out.println(failures.get() == 0 ? "OK" : "FAILED: " + failures.get() + " check(s)");
+    }
+
+    private void check(boolean ok, String what) { if (!ok) fail(what); }
+
+    private void fail(String what) {
+        if (failures.incrementAndGet() <= 10) System.out.println("FAIL " + what);
+    }
+}
+
+// =====================================================
+// UPDATE BENCHMARK - Versioned edits against the locked update path
+// =====================================================
+// Run with: java CityBookshop --bench-update [writers] [seconds]
+// Works on the sample catalog in a temporary directory, with every change
+// journaled. The writers all restock (+1) and reprice books from that
+// small set, first through updateBookWithRetry, then through updateStock
+// and updatePrice, which queue on the DataManager. Reports commits per
+// second for each, how many versioned commits lost a race and were
+// retried, and restocks lost to read-then-write races.
+class UpdateBench {
+    static final int ATTEMPTS = 100;
+
+    interface Edit {
+        boolean apply(String bookId, double price);
+    }
+
+    public static void main(int writers, int seconds) {
+        try {
+            System.setProperty("bookshop.dataDir", Files.createTempDirectory("bookshop-bench").toString());
+        } catch (IOException e) {
+            System.out.println("Error running benchmark: " + e.getMessage());
+            return;
+        }
+        DataManager data = new DataManager(0);
+        List<String> ids = new ArrayList<>();
+        for (Book b : data.getAllBooks()) ids.add(b.getBookId());
+        try {
+            run("versioned", writers, seconds, data, ids, (id, price) -> data.updateBookWithRetry(id, b -> {
+                b.setStockQuantity(b.getStockQuantity() + 1);
+                b.setPrice(price);
+            }, ATTEMPTS));
+            run("locked", writers, seconds, data, ids, (id, price) ->
+                    data.updateStock(id, data.getBookById(id).getStockQuantity() + 1) && data.updatePrice(id, price));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        data.close();
+    }
+
+    private static void run(String name, int writers, int seconds, DataManager data, List<String> ids, Edit edit)
+            throws InterruptedException {
+        AtomicLong commits = new AtomicLong(), gaveUp = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        long units = data.getTotalStock(), conflicts = data.getUpdateConflicts();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++)
+            threads.add(new Thread(() -> {
+                Random r = new Random();
+                while (running.get()) {
+                    if (edit.apply(ids.get(r.nextInt(ids.size())), 100 + r.nextInt(5000))) commits.incrementAndGet();
+                    else gaveUp.incrementAndGet();
+                }
+            }, "bench-" + name + "-" + i));
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread t : threads) t.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        long n = commits.get(), retried = data.getUpdateConflicts() - conflicts;
+        System.out.printf("%s: %d writers on %d books, %.0f commits/s, %.3f conflicts per commit, %d gave up, %d restocks lost%n",
+                name, writers, ids.size(), n / secs, n == 0 ? 0.0 : (double) retried / n, gaveUp.get(),
+                units + n - data.getTotalStock());
+    }
+}
+
+// =====================================================
+// JSON - Minimal reader and writer for the HTTP API
+// =====================================================
+// Objects parse to LinkedHashMap, arrays to ArrayList, numbers to Long
+// (no fraction or exponent) or Double, and true/false/null to themselves.
+class Json {
+    // Builds one JSON object; values are quoted by type
+    static class Obj {
+        private final StringBuilder sb = new StringBuilder("{");
+
+        public Obj put(String name, Object value) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(quote(name)).append(':').append(value(value));
+            return this;
+        }
+
+        // Value that is already JSON text (a nested object or array)
+        public Obj raw(String name, String json) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(quote(name)).append(':').append(json);
+            return this;
+        }
+
+        public String toString() { return sb + "}"; }
+    }
+
+    static String value(Object v) {
+        if (v == null) return "null";
+        if (v instanceof Number || v instanceof Boolean) return v.toString();
+        return quote(v.toString());
+    }
+
+    static <T> String array(List<T> items, Function<T, String> toJson) {
+        StringBuilder sb = new StringBuilder("[");
+        for (T item : items) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(toJson.apply(item));
+        }
+        return sb.append(']').toString();
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // ----- READING -----
+    // Deepest nesting of objects and arrays accepted; the parser recurses
+    // once per level, so this also bounds its stack use
+    static final int MAX_DEPTH = 64;
+
+    private final String s;
+    private int pos = 0;
+    private int depth = 0;
+
+    private Json(String s) { this.s = s; }
+
+    // Throws IllegalArgumentException on malformed input
+    static Object parse(String text) {
+        Json p = new Json(text);
+        Object v = p.value();
+        p.skipSpace();
+        if (p.pos != p.s.length()) throw p.error("trailing characters");
+        return v;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseObject(String text) {
+        Object v = parse(text);
+        if (!(v instanceof Map)) throw new IllegalArgumentException("JSON object expected");
+        return (Map<String, Object>) v;
+    }
+
+    private Object value() {
+        skipSpace();
+        if (pos >= s.length()) throw error("unexpected end");
+        char c = s.charAt(pos);
+        if (c == '{') return object();
+        if (c == '[') return array();
+        if (c == '"') return string();
+        if (s.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+        if (s.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+        if (s.startsWith("null", pos)) { pos += 4; return null; }
+        return number();
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        enter();
+        skipSpace();
+        if (peek() == '}') { pos++; depth--; return map; }
+        while (true) {
+            skipSpace();
+            if (peek() != '"') throw error("name expected");
+            String name = string();
+            skipSpace();
+            expect(':');
+            map.put(name, value());
+            skipSpace();
+            if (peek() == ',') { pos++; continue; }
+            expect('}');
+            depth--;
+            return map;
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        enter();
+        skipSpace();
+        if (peek() == ']') { pos++; depth--; return list; }
+        while (true) {
+            list.add(value());
+            skipSpace();
+            if (peek() == ',') { pos++; continue; }
+            expect(']');
+            depth--;
+            return list;
+        }
+    }
+
+    // Step past an opening bracket, one level deeper
+    private void enter() {
+        if (++depth > MAX_DEPTH) throw error("nested more than " + MAX_DEPTH + " deep");
+        pos++;
+    }
+
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= s.length()) throw error("unterminated string");
+            char c = s.charAt(pos++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') { sb.append(c); continue; }
+            if (pos >= s.length()) throw error("unterminated string");
+            char e = s.charAt(pos++);
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > s.length()) throw error("bad escape");
+                    sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: sb.append(e); // \" \\ \/
+            }
+        }
     }
 
-    public String toString() { return title + " by " + author; }
-}
+    private Object number() {
+        int start = pos;
+        while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+        if (start == pos) throw error("unexpected character");
+        String n = s.substring(start, pos);
+        boolean fraction = n.indexOf('.') >= 0 || n.indexOf('e') >= 0 || n.indexOf('E') >= 0;
+        try { return fraction ? (Object) Double.parseDouble(n) : (Object) Long.parseLong(n); }
+        catch (NumberFormatException e) { throw error("bad number " + n); }
+    }
 
-// =====================================================
-// CATEGORY CLASS - Represents a book category
-// =====================================================
-class Category implements Serializable {
-    private String categoryId;
-    private String categoryName;
-    private String description;
+    private void skipSpace() { while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++; }
+    private char peek() { return pos < s.length() ? s.charAt(pos) : 0; }
 
-    public Category(String categoryId, String categoryName, String description) {
-        this.categoryId = categoryId;
-        this.categoryName = categoryName;
-        this.description = description;
+    private void expect(char c) {
+        if (peek() != c) throw error("'" + c + "' expected");
+        pos++;
     }
 
-    // Getters and Setters
-    public String getCategoryId() { return categoryId; }
-    public void setCategoryId(String categoryId) { this.categoryId = categoryId; }
-    public String getCategoryName() { return categoryName; }
-    public void setCategoryName(String categoryName) { this.categoryName = categoryName; }
-    public String getDescription() { return description; }
-    public void setDescription(String description) { this.description = description; }
+    private IllegalArgumentException error(String what) {
+        return new IllegalArgumentException("Bad JSON at " + pos + ": " + what);
+    }
 
-    // Convert to CSV line
-    public String toCSV() {
-        return categoryId + "," + categoryName + "," + description;
+    // ----- FIELD HELPERS -----
+    static String getString(Map<String, Object> m, String name) {
+        Object v = m.get(name);
+        if (v == null) throw new IllegalArgumentException("Missing field: " + name);
+        return v.toString();
     }
 
-    public String toString() { return categoryName; }
+    static double getDouble(Map<String, Object> m, String name) {
+        Object v = m.get(name);
+        if (!(v instanceof Number)) throw new IllegalArgumentException("Missing number: " + name);
+        return ((Number) v).doubleValue();
+    }
+
+    static long getLong(Map<String, Object> m, String name) {
+        Object v = m.get(name);
+        if (!(v instanceof Number)) throw new IllegalArgumentException("Missing number: " + name);
+        return ((Number) v).longValue();
+    }
+
+    // A whole number that must fit in an int
+    static int getInt(Map<String, Object> m, String name) {
+        long v = getLong(m, name);
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw new IllegalArgumentException("Out of range: " + name);
+        return (int) v;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Object> getList(Map<String, Object> m, String name) {
+        Object v = m.get(name);
+        if (!(v instanceof List)) throw new IllegalArgumentException("Missing list: " + name);
+        return (List<Object>) v;
+    }
 }
 
 // =====================================================
-// INTERFACE - Contract for file operations
+// CATALOG JSON - Wire format shared by server and client
 // =====================================================
-interface FileOperations {
-    void saveToFile();
-    void loadFromFile();
+class CatalogJson {
+    static String book(Book b) {
+        return new Json.Obj().put("bookId", b.getBookId()).put("title", b.getTitle()).put("author", b.getAuthor())
+                .put("category", b.getCategory()).put("price", b.getPrice()).put("stock", b.getStockQuantity()).toString();
+    }
+
+    static Book toBook(Map<String, Object> m) {
+        return new Book(Json.getString(m, "bookId"), Json.getString(m, "title"), Json.getString(m, "author"),
+                Json.getString(m, "category"), Json.getDouble(m, "price"), Json.getInt(m, "stock"));
+    }
+
+    static String books(List<Book> books) { return Json.array(books, CatalogJson::book); }
+
+    @SuppressWarnings("unchecked")
+    static List<Book> toBooks(List<Object> list) {
+        List<Book> out = new ArrayList<>(list.size());
+        for (Object o : list) out.add(toBook((Map<String, Object>) o));
+        return out;
+    }
+
+    static String category(Category c) {
+        return new Json.Obj().put("categoryId", c.getCategoryId()).put("name", c.getCategoryName())
+                .put("description", c.getDescription()).toString();
+    }
+
+    static Category toCategory(Map<String, Object> m) {
+        return new Category(Json.getString(m, "categoryId"), Json.getString(m, "name"), Json.getString(m, "description"));
+    }
+
+    // Passwords go out only when asked for (creating an account), never in listings
+    static String person(Person p, boolean withPassword) {
+        Json.Obj o = new Json.Obj().put("role", p.getRole()).put("username", p.getUsername()).put("fullName", p.getFullName());
+        if (withPassword) o.put("password", p.getPassword());
+        return o.toString();
+    }
+
+    static Person toPerson(Map<String, Object> m) {
+        String username = Json.getString(m, "username"), fullName = Json.getString(m, "fullName");
+        Object password = m.get("password");
+        String pw = password == null ? "" : password.toString();
+        if ("Manager".equals(m.get("role"))) return new Manager(username, pw, fullName);
+        return new Cashier(username, pw, fullName);
+    }
+
+    static String sale(Sale s) {
+        String lines = Json.array(s.getLines(), l -> new Json.Obj().put("bookId", l.getBookId()).put("title", l.getTitle())
+                .put("quantity", l.getQuantity()).put("unitPrice", l.getUnitPrice()).toString());
+        return new Json.Obj().put("saleId", s.getSaleId()).put("cashier", s.getCashier()).put("time", s.getTime())
+                .put("total", s.getTotal()).raw("lines", lines).toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    static Sale toSale(Map<String, Object> m) {
+        List<SaleLine> lines = new ArrayList<>();
+        for (Object o : Json.getList(m, "lines")) {
+            Map<String, Object> l = (Map<String, Object>) o;
+            lines.add(new SaleLine(Json.getString(l, "bookId"), Json.getString(l, "title"), Json.getInt(l, "quantity"),
+                    Json.getDouble(l, "unitPrice"), -1));
+        }
+        return new Sale(Json.getString(m, "saleId"), Json.getString(m, "cashier"), Json.getLong(m, "time"), lines);
+    }
+
+    static String stats(CatalogStats s) {
+        String categories = Json.array(s.getCategories(), c -> new Json.Obj().put("name", c.getName())
+                .put("titles", c.getTitles()).put("units", c.getUnits()).put("value", c.getValue())
+                .put("minPrice", c.getMinPrice()).put("maxPrice", c.getMaxPrice()).toString());
+        return new Json.Obj().put("titles", s.getTitles()).put("units", s.getUnits()).put("value", s.getValue())
+                .raw("categories", categories).toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    static CatalogStats toStats(Map<String, Object> m) {
+        List<CatalogStats.CategoryStats> categories = new ArrayList<>();
+        for (Object o : Json.getList(m, "categories")) {
+            Map<String, Object> c = (Map<String, Object>) o;
+            categories.add(new CatalogStats.CategoryStats(Json.getString(c, "name"), Json.getInt(c, "titles"),
+                    Json.getLong(c, "units"), DataManager.cents(Json.getDouble(c, "value")),
+                    DataManager.cents(Json.getDouble(c, "minPrice")), DataManager.cents(Json.getDouble(c, "maxPrice"))));
+        }
+        return CatalogStats.of(Json.getInt(m, "titles"), Json.getLong(m, "units"),
+                DataManager.cents(Json.getDouble(m, "value")), categories);
+    }
 }
 
 // =====================================================
-// DATA MANAGER - Handles all data and file operations
+// BOOKSHOP SERVER - One shared catalog for many tills
 // =====================================================
-class DataManager implements FileOperations {
-    private List<Person> users = new ArrayList<>();
-    private List<Book> books = new ArrayList<>();
-    private List<Category> categories = new ArrayList<>();
+// Hosts a DataManager behind a small HTTP/JSON API so every till sees the
+// same stock. Each request runs on its own virtual thread when the JDK has
+// them (21+) and on a bounded pool otherwise; DataManager's readers never
+// block each other, so requests scale with cores rather than a lock.
+//
+// Logging in opens a session; every other request must carry its token as
+// "Authorization: Bearer <token>" (401 otherwise). Sales are made in the
+// name of the session's user, and adding books, categories or users
+// needs a Manager (403 otherwise). Sessions lapse after
+// -Dbookshop.sessionIdleMinutes (default 480) without a request. Request
+// bodies over MAX_BODY bytes, or JSON nested deeper than Json.MAX_DEPTH,
+// are refused (400).
+//
+//   POST /api/login                {username, password}      -> {token, user}
+//   POST /api/logout
+//   GET  /api/books                                          -> [book]
+//   GET  /api/books/{id}                                     -> book + liveStock, index
+//   POST /api/books                book                      -> 201 | 409
+//   GET  /api/search?by=name|category|price|stock|fuzzy&q=   -> [book]
+//   GET  /api/query?text&category&minPrice&maxPrice&minStock&maxStock&offset&limit
+//                                                            -> {offset, total, books}
+//   POST /api/checkout             {lines:[{bookId, quantity}]} -> sale | 409
+//   GET|POST /api/categories, GET|POST /api/users
+//   GET  /api/stats                                          -> {titles, units, value, categories}
+//   GET  /api/next-id?kind=book|category, GET /api/version
+class BookshopServer {
+    static final int DEFAULT_PORT = 8787;
+    // Requests allowed to queue in the kernel before the server accepts them
+    static final int BACKLOG = 1024;
+    // Pool size used when virtual threads are not available
+    static final int POOL_SIZE = Math.max(32, Runtime.getRuntime().availableProcessors() * 8);
+    static final long SESSION_IDLE_MS = Long.getLong("bookshop.sessionIdleMinutes", 480) * 60_000;
+    // Largest request body read (bytes); anything longer is refused
+    static final int MAX_BODY = 1 << 20;
+
+    private static class Session {
+        final Person user;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Session(Person user) { this.user = user; }
+
+        boolean expired(long now) { return now - lastUsed > SESSION_IDLE_MS; }
+    }
 
-    public DataManager() {
-        loadFromFile();
-        if (users.isEmpty()) {
-            loadDefaultData();
-            saveToFile();
+    private final DataManager data;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    // Binds to the loopback address unless -Dbookshop.serverHost says otherwise
+    public BookshopServer(DataManager data, int port) throws IOException {
+        this.data = data;
+        String host = System.getProperty("bookshop.serverHost");
+        InetSocketAddress address = host == null
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(host, port);
+        server = HttpServer.create(address, BACKLOG);
+        executor = requestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    public void start() { server.start(); }
+    public int getPort() { return server.getAddress().getPort(); }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection
+    // so the same source still builds and runs on JDK 17
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(POOL_SIZE, r -> {
+                Thread t = new Thread(r, "http-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
     }
 
-    // Load sample data for first run
-    private void loadDefaultData() {
-        users.add(new Manager("manager", "manager123", "John Smith"));
-        users.add(new Cashier("cashier", "cashier123", "Jane Doe"));
-
-        categories.add(new Category("CAT001", "Fiction", "Fictional novels and stories"));
-        categories.add(new Category("CAT002", "Non-Fiction", "Non-fictional books and biographies"));
-        categories.add(new Category("CAT003", "Science", "Science and technology books"));
-        categories.add(new Category("CAT004", "History", "Historical books and references"));
-        categories.add(new Category("CAT005", "Children", "Books for children"));
-
-        books.add(new Book("BK001", "The Great Gatsby", "F. Scott Fitzgerald", "Fiction", 1500.00, 25));
-        books.add(new Book("BK002", "To Kill a Mockingbird", "Harper Lee", "Fiction", 1200.00, 30));
-        books.add(new Book("BK003", "A Brief History of Time", "Stephen Hawking", "Science", 2000.00, 15));
-        books.add(new Book("BK004", "Sapiens", "Yuval Noah Harari", "History", 1800.00, 20));
-        books.add(new Book("BK005", "The Cat in the Hat", "Dr. Seuss", "Children", 800.00, 40));
-        books.add(new Book("BK006", "1984", "George Orwell", "Fiction", 1100.00, 35));
-        books.add(new Book("BK007", "Becoming", "Michelle Obama", "Non-Fiction", 2200.00, 18));
-        books.add(new Book("BK008", "Cosmos", "Carl Sagan", "Science", 1900.00, 12));
-        books.add(new Book("BK009", "The Diary of a Young Girl", "Anne Frank", "History", 950.00, 28));
-        books.add(new Book("BK010", "Charlotte's Web", "E.B. White", "Children", 750.00, 45));
+    // ----- ROUTING -----
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            String method = ex.getRequestMethod(), path = ex.getRequestURI().getPath();
+            Map<String, String> params = queryParams(ex.getRequestURI().getRawQuery());
+            boolean get = method.equals("GET"), post = method.equals("POST");
+            if (path.equals("/api/login") && post) { login(ex); return; }
+            Person user = sessionUser(ex);
+            if (user == null) { error(ex, 401, "Log in first"); return; }
+
+            if (path.equals("/api/books") && get) reply(ex, 200, CatalogJson.books(data.getAllBooks()));
+            else if (path.equals("/api/books") && post) addBook(ex, user);
+            else if (path.startsWith("/api/books/") && get) lookup(ex, path.substring("/api/books/".length()));
+            else if (path.equals("/api/search") && get) reply(ex, 200, CatalogJson.books(search(params)));
+            else if (path.equals("/api/query") && get) query(ex, params);
+            else if (path.equals("/api/checkout") && post) checkout(ex, user);
+            else if (path.equals("/api/logout") && post) logout(ex);
+            else if (path.equals("/api/categories") && get) reply(ex, 200, Json.array(data.getAllCategories(), CatalogJson::category));
+            else if (path.equals("/api/categories") && post) created(ex, data.addCategory(CatalogJson.toCategory(managerBody(ex, user))));
+            else if (path.equals("/api/users") && get) reply(ex, 200, Json.array(data.getAllUsers(), p -> CatalogJson.person(p, false)));
+            else if (path.equals("/api/users") && post) created(ex, data.addUser(CatalogJson.toPerson(managerBody(ex, user))));
+            else if (path.equals("/api/next-id") && get) nextId(ex, params);
+            else if (path.equals("/api/stats") && get) reply(ex, 200, CatalogJson.stats(data.getStats()));
+            else if (path.equals("/api/version") && get) reply(ex, 200, new Json.Obj().put("version", data.getCatalogVersion()).toString());
+            else error(ex, 404, "No such endpoint: " + method + " " + path);
+        } catch (SecurityException e) {
+            error(ex, 403, e.getMessage());
+        } catch (UncheckedIOException e) { // made in memory, but not saved
+            System.out.println("Error handling request: " + e.getMessage());
+            error(ex, 503, e.getMessage());
+        } catch (IllegalStateException e) {
+            error(ex, 409, e.getMessage());
+        } catch (IllegalArgumentException e) { // also NumberFormatException
+            error(ex, 400, e.getMessage());
+        } catch (ArithmeticException e) { // a cart line whose quantities overflow
+            error(ex, 400, "Number out of range");
+        } catch (RuntimeException e) {
+            System.out.println("Error handling request: " + e);
+            error(ex, 500, "Internal error");
+        } finally {
+            ex.close();
+        }
     }
 
-    // ----- FILE SAVE METHODS -----
-    public void saveToFile() {
-        // Save users
-        try (PrintWriter w = new PrintWriter(new FileWriter("users.csv"))) {
-            w.println("Role,Username,Password,FullName");
-            for (Person u : users)
-                w.println(u.getRole() + "," + u.getUsername() + "," + u.getPassword() + "," + u.getFullName());
-        } catch (IOException e) { System.out.println("Error saving users: " + e.getMessage()); }
+    private List<Book> search(Map<String, String> params) {
+        String q = params.getOrDefault("q", "");
+        switch (params.getOrDefault("by", "name")) {
+            case "category": return data.searchByCategory(q);
+            case "price": return data.searchByPrice(Double.parseDouble(q));
+            case "stock": return data.searchByStock(Integer.parseInt(q));
+            case "fuzzy": return data.searchFuzzy(q);
+            case "name": return data.searchByName(q);
+            default: throw new IllegalArgumentException("Unknown search: " + params.get("by"));
+        }
+    }
 
-        // Save books
-        try (PrintWriter w = new PrintWriter(new FileWriter("books.csv"))) {
-            w.println("BookID,Title,Author,Category,Price,StockQuantity");
-            for (Book b : books) w.println(b.toCSV());
-        } catch (IOException e) { System.out.println("Error saving books: " + e.getMessage()); }
+    private void query(HttpExchange ex, Map<String, String> params) throws IOException {
+        BookQuery q = new BookQuery().text(params.get("text")).category(params.get("category"));
+        if (params.containsKey("minPrice")) q.minPrice(Double.parseDouble(params.get("minPrice")));
+        if (params.containsKey("maxPrice")) q.maxPrice(Double.parseDouble(params.get("maxPrice")));
+        if (params.containsKey("minStock")) q.minStock(Integer.parseInt(params.get("minStock")));
+        if (params.containsKey("maxStock")) q.maxStock(Integer.parseInt(params.get("maxStock")));
+        int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+        int limit = Integer.parseInt(params.getOrDefault("limit", "200"));
+        ResultPage page = data.page(q, offset, limit);
+        reply(ex, 200, new Json.Obj().put("offset", page.getOffset()).put("total", page.getTotal())
+                .raw("books", CatalogJson.books(page.getBooks())).toString());
+    }
 
-        // Save categories
-        try (PrintWriter w = new PrintWriter(new FileWriter("categories.csv"))) {
-            w.println("CategoryID,CategoryName,Description");
-            for (Category c : categories) w.println(c.toCSV());
-        } catch (IOException e) { System.out.println("Error saving categories: " + e.getMessage()); }
+    private void lookup(HttpExchange ex, String bookId) throws IOException {
+        Book b = data.getBookById(bookId);
+        if (b == null) { error(ex, 404, "Book not found: " + bookId); return; }
+        String json = CatalogJson.book(b);
+        reply(ex, 200, json.substring(0, json.length() - 1) + ",\"liveStock\":" + data.getLiveStock(bookId)
+                + ",\"index\":" + data.indexOf(bookId) + "}");
     }
 
-    // ----- FILE LOAD METHODS -----
-    public void loadFromFile() {
-        // Load users
-        File userFile = new File("users.csv");
-        if (userFile.exists()) {
-            try (Scanner sc = new Scanner(userFile)) {
-                if (sc.hasNextLine()) sc.nextLine(); // skip header
-                while (sc.hasNextLine()) {
-                    String[] p = sc.nextLine().trim().split(",", 4);
-                    if (p.length == 4) {
-                        if (p[0].equals("Manager")) users.add(new Manager(p[1], p[2], p[3]));
-                        else users.add(new Cashier(p[1], p[2], p[3]));
-                    }
-                }
-            } catch (IOException e) { System.out.println("Error loading users: " + e.getMessage()); }
-        }
-
-        // Load books
-        File bookFile = new File("books.csv");
-        if (bookFile.exists()) {
-            try (Scanner sc = new Scanner(bookFile)) {
-                if (sc.hasNextLine()) sc.nextLine(); // skip header
-                while (sc.hasNextLine()) {
-                    String[] p = sc.nextLine().trim().split(",", 6);
-                    if (p.length == 6)
-                        books.add(new Book(p[0], p[1], p[2], p[3], Double.parseDouble(p[4]), Integer.parseInt(p[5])));
-                }
-            } catch (IOException e) { System.out.println("Error loading books: " + e.getMessage()); }
+    private void addBook(HttpExchange ex, Person user) throws IOException {
+        Book b = CatalogJson.toBook(managerBody(ex, user));
+        if (b.getPrice() <= 0 || b.getStockQuantity() < 0)
+            throw new IllegalArgumentException("Price must be positive and stock cannot be negative");
+        created(ex, data.addBook(b));
+    }
+
+    // The sale is made by the logged-in user
+    private void checkout(HttpExchange ex, Person cashier) throws IOException {
+        Map<String, Object> req = body(ex);
+        Map<String, Integer> cart = new LinkedHashMap<>();
+        for (Object o : Json.getList(req, "lines")) {
+            if (!(o instanceof Map)) throw new IllegalArgumentException("Bad cart line");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> line = (Map<String, Object>) o;
+            cart.merge(Json.getString(line, "bookId"), Json.getInt(line, "quantity"), Math::addExact);
         }
+        reply(ex, 200, CatalogJson.sale(data.checkout(cashier, cart)));
+    }
 
-        // Load categories
-        File catFile = new File("categories.csv");
-        if (catFile.exists()) {
-            try (Scanner sc = new Scanner(catFile)) {
-                if (sc.hasNextLine()) sc.nextLine(); // skip header
-                while (sc.hasNextLine()) {
-                    String[] p = sc.nextLine().trim().split(",", 3);
-                    if (p.length == 3) categories.add(new Category(p[0], p[1], p[2]));
-                }
-            } catch (IOException e) { System.out.println("Error loading categories: " + e.getMessage()); }
+    // ----- SESSIONS -----
+    private void login(HttpExchange ex) throws IOException {
+        Map<String, Object> req = body(ex);
+        Person p = data.authenticate(Json.getString(req, "username"), Json.getString(req, "password"));
+        if (p == null) { error(ex, 401, "Invalid username or password"); return; }
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(s -> s.expired(now));
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(p));
+        reply(ex, 200, new Json.Obj().put("token", token).raw("user", CatalogJson.person(p, false)).toString());
+    }
+
+    private void logout(HttpExchange ex) throws IOException {
+        sessions.remove(token(ex));
+        reply(ex, 200, "{}");
+    }
+
+    // User of the request's session; null if it has none or it has lapsed
+    private Person sessionUser(HttpExchange ex) {
+        String token = token(ex);
+        Session s = token == null ? null : sessions.get(token);
+        if (s == null) return null;
+        long now = System.currentTimeMillis();
+        if (s.expired(now)) {
+            sessions.remove(token);
+            return null;
         }
+        s.lastUsed = now;
+        return s.user;
     }
 
-    // ----- USER OPERATIONS -----
-    public Person authenticate(String username, String password) {
-        for (Person user : users) {
-            if (user.getUsername().equals(username) && user.getPassword().equals(password))
-                return user;
+    private static String token(HttpExchange ex) {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        return auth != null && auth.startsWith("Bearer ") ? auth.substring("Bearer ".length()).trim() : null;
+    }
+
+    private static void requireManager(Person user) {
+        if (!(user instanceof Manager)) throw new SecurityException("Only a manager can do that");
+    }
+
+    private static Map<String, Object> managerBody(HttpExchange ex, Person user) throws IOException {
+        requireManager(user);
+        return body(ex);
+    }
+
+    private void nextId(HttpExchange ex, Map<String, String> params) throws IOException {
+        String kind = params.getOrDefault("kind", "book");
+        String id = kind.equals("category") ? data.generateCategoryId() : data.generateBookId();
+        reply(ex, 200, new Json.Obj().put("id", id).toString());
+    }
+
+    // ----- HELPERS -----
+    private void created(HttpExchange ex, boolean added) throws IOException {
+        if (added) reply(ex, 201, "{}");
+        else error(ex, 409, "Already exists");
+    }
+
+    private static Map<String, Object> body(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            byte[] bytes = in.readNBytes(MAX_BODY + 1);
+            if (bytes.length > MAX_BODY) throw new IllegalArgumentException("Request body is over " + MAX_BODY + " bytes");
+            return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
         }
-        return null;
     }
 
-    public boolean addUser(Person user) {
-        for (Person existing : users) {
-            if (existing.getUsername().equals(user.getUsername())) return false;
+    private static Map<String, String> queryParams(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq), value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
         }
-        users.add(user);
-        saveToFile();
+        return params;
+    }
+
+    private static void error(HttpExchange ex, int status, String message) throws IOException {
+        reply(ex, status, new Json.Obj().put("error", message == null ? "Error" : message).toString());
+    }
+
+    private static void reply(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) { out.write(bytes); }
+    }
+}
+
+// =====================================================
+// REMOTE DATA MANAGER - Client for a shared BookshopServer
+// =====================================================
+// Lets the Swing screens run against a server instead of local files.
+// Failures to reach the server are reported and treated like an empty
+// answer, except in checkout, where the till must know the sale failed.
+// Logging in keeps the session token, which goes with every request.
+class RemoteDataManager implements BookshopService {
+    static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final String baseUrl;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+    // The server does not push changes; listeners hear about this till's own
+    private final ChangeFeed feed = new ChangeFeed();
+    private volatile String token; // session of the last successful login
+
+    // e.g. "http://localhost:8787"
+    public RemoteDataManager(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    // ----- USERS -----
+    public Person authenticate(String username, String password) {
+        Response r = post("/api/login", new Json.Obj().put("username", username).put("password", password).toString());
+        if (r == null || r.status != 200) return null;
+        Map<String, Object> m = Json.parseObject(r.body);
+        @SuppressWarnings("unchecked")
+        Person p = CatalogJson.toPerson((Map<String, Object>) m.get("user"));
+        p.setPassword(password);
+        token = Json.getString(m, "token");
+        return p;
+    }
+
+    public boolean addUser(Person user) {
+        if (!created(post("/api/users", CatalogJson.person(user, true)))) return false;
+        feed.publish(CatalogEvent.userAdded(user));
         return true;
     }
 
-    // ----- BOOK OPERATIONS -----
-    public void addBook(Book book) { books.add(book); saveToFile(); }
+    @SuppressWarnings("unchecked")
+    public List<Person> getAllUsers() {
+        List<Person> out = new ArrayList<>();
+        for (Object o : list("/api/users")) out.add(CatalogJson.toPerson((Map<String, Object>) o));
+        return out;
+    }
 
-    public List<Book> searchByName(String name) {
-        List<Book> result = new ArrayList<>();
-        for (Book b : books)
-            if (b.getTitle().toLowerCase().contains(name.toLowerCase())) result.add(b);
-        return result;
+    // ----- BOOKS -----
+    public boolean addBook(Book book) {
+        if (!created(post("/api/books", CatalogJson.book(book)))) return false;
+        feed.publish(CatalogEvent.bookAdded(book));
+        return true;
     }
 
-    public List<Book> searchByCategory(String category) {
-        List<Book> result = new ArrayList<>();
-        for (Book b : books)
-            if (b.getCategory().toLowerCase().contains(category.toLowerCase())) result.add(b);
-        return result;
+    public Book getBookById(String bookId) {
+        Response r = get("/api/books/" + encode(bookId));
+        return r == null || r.status != 200 ? null : CatalogJson.toBook(Json.parseObject(r.body));
     }
 
-    public List<Book> searchByPrice(double maxPrice) {
-        List<Book> result = new ArrayList<>();
-        for (Book b : books)
-            if (b.getPrice() <= maxPrice) result.add(b);
-        return result;
+    public List<Book> getAllBooks() { return CatalogJson.toBooks(list("/api/books")); }
+    public String generateBookId() { return nextId("book"); }
+
+    public int getLiveStock(String bookId) { return lookupNumber(bookId, "liveStock"); }
+    public int indexOf(String bookId) { return lookupNumber(bookId, "index"); }
+
+    private int lookupNumber(String bookId, String field) {
+        Response r = get("/api/books/" + encode(bookId));
+        return r == null || r.status != 200 ? -1 : (int) Json.getLong(Json.parseObject(r.body), field);
     }
 
-    public List<Book> searchByStock(int minStock) {
-        List<Book> result = new ArrayList<>();
-        for (Book b : books)
-            if (b.getStockQuantity() >= minStock) result.add(b);
-        return result;
+    // ----- CATEGORIES -----
+    public boolean addCategory(Category cat) {
+        if (!created(post("/api/categories", CatalogJson.category(cat)))) return false;
+        feed.publish(CatalogEvent.categoryAdded(cat));
+        return true;
     }
 
-    // ----- CATEGORY OPERATIONS -----
-    public void addCategory(Category cat) { categories.add(cat); saveToFile(); }
+    @SuppressWarnings("unchecked")
+    public List<Category> getAllCategories() {
+        List<Category> out = new ArrayList<>();
+        for (Object o : list("/api/categories")) out.add(CatalogJson.toCategory((Map<String, Object>) o));
+        return out;
+    }
 
-    // ----- GETTERS -----
-    public List<Book> getAllBooks() { return books; }
-    public List<Category> getAllCategories() { return categories; }
-    public List<Person> getAllUsers() { return users; }
+    public String generateCategoryId() { return nextId("category"); }
 
-    // ----- ID GENERATORS -----
-    public String generateBookId() {
-        int max = 0;
-        for (Book b : books) {
-            try { int n = Integer.parseInt(b.getBookId().replace("BK", "")); if (n > max) max = n; }
-            catch (NumberFormatException e) {}
+    // ----- SEARCH -----
+    public List<Book> searchByName(String name) { return search("name", name); }
+    public List<Book> searchText(String query) { return search("name", query); }
+    public List<Book> searchFuzzy(String query) { return search("fuzzy", query); }
+    public List<Book> searchByCategory(String category) { return search("category", category); }
+    public List<Book> searchByPrice(double maxPrice) { return search("price", String.valueOf(maxPrice)); }
+    public List<Book> searchByStock(int minStock) { return search("stock", String.valueOf(minStock)); }
+
+    // The server keeps no per-client results to refine, so this is a plain search
+    public List<Book> refineText(List<Book> previous, String previousQuery, long previousVersion, String query) {
+        return searchText(query);
+    }
+
+    public ResultPage page(BookQuery q, int offset, int limit) {
+        StringBuilder url = new StringBuilder("/api/query?offset=" + offset + "&limit=" + limit);
+        if (q.hasText()) url.append("&text=").append(encode(q.getText()));
+        if (q.hasCategory()) url.append("&category=").append(encode(q.getCategory()));
+        if (q.getMinPrice() != Double.NEGATIVE_INFINITY) url.append("&minPrice=").append(q.getMinPrice());
+        if (q.getMaxPrice() != Double.POSITIVE_INFINITY) url.append("&maxPrice=").append(q.getMaxPrice());
+        if (q.getMinStock() != Integer.MIN_VALUE) url.append("&minStock=").append(q.getMinStock());
+        if (q.getMaxStock() != Integer.MAX_VALUE) url.append("&maxStock=").append(q.getMaxStock());
+        Response r = get(url.toString());
+        if (r == null || r.status != 200) return new ResultPage(new ArrayList<>(), offset, 0);
+        Map<String, Object> m = Json.parseObject(r.body);
+        return new ResultPage(CatalogJson.toBooks(Json.getList(m, "books")), (int) Json.getLong(m, "offset"),
+                (int) Json.getLong(m, "total"));
+    }
+
+    public long getCatalogVersion() {
+        Response r = get("/api/version");
+        return r == null || r.status != 200 ? -1 : Json.getLong(Json.parseObject(r.body), "version");
+    }
+
+    // The server's published totals; empty if it cannot be reached
+    public CatalogStats getStats() {
+        Response r = get("/api/stats");
+        return r == null || r.status != 200 ? new CatalogStats() : CatalogJson.toStats(Json.parseObject(r.body));
+    }
+
+    // ----- POINT OF SALE -----
+    public Sale checkout(Person cashier, Map<String, Integer> cart) {
+        String lines = Json.array(new ArrayList<>(cart.entrySet()),
+                e -> new Json.Obj().put("bookId", e.getKey()).put("quantity", e.getValue()).toString());
+        Response r = post("/api/checkout", new Json.Obj().raw("lines", lines).toString()); // sold by the logged-in user
+        if (r == null) throw new IllegalStateException("Server unavailable; the sale was not made");
+        if (r.status == 200) {
+            Sale sale = CatalogJson.toSale(Json.parseObject(r.body));
+            for (SaleLine l : sale.getLines()) {
+                Book b = getBookById(l.getBookId());
+                if (b != null) feed.publish(CatalogEvent.stockChanged(b));
+            }
+            return sale;
         }
-        return String.format("BK%03d", max + 1);
+        String message = errorMessage(r);
+        if (r.status == 409) throw new IllegalStateException(message);
+        throw new IllegalArgumentException(message);
     }
 
-    public String generateCategoryId() {
-        int max = 0;
-        for (Category c : categories) {
-            try { int n = Integer.parseInt(c.getCategoryId().replace("CAT", "")); if (n > max) max = n; }
-            catch (NumberFormatException e) {}
+    public void addCatalogListener(CatalogListener l) { feed.addListener(l); }
+    public void removeCatalogListener(CatalogListener l) { feed.removeListener(l); }
+
+    // The server owns the data; only the session is ended
+    public void close() {
+        if (token != null) post("/api/logout", "{}");
+        token = null;
+    }
+
+    // ----- HTTP -----
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response get(String path) {
+        return send(request(path).GET().build());
+    }
+
+    private Response post(String path, String json) {
+        return send(request(path).header("Content-Type", "application/json; charset=utf-8")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(TIMEOUT);
+        String t = token;
+        if (t != null) b.header("Authorization", "Bearer " + t);
+        return b;
+    }
+
+    // null when the server could not be reached
+    private Response send(HttpRequest request) {
+        try {
+            HttpResponse<String> r = http.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            return new Response(r.statusCode(), r.body());
+        } catch (IOException e) {
+            System.out.println("Error contacting server: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> list(String path) {
+        Response r = get(path);
+        if (r == null || r.status != 200) return new ArrayList<>();
+        Object v = Json.parse(r.body);
+        return v instanceof List ? (List<Object>) v : new ArrayList<>();
+    }
+
+    private List<Book> search(String by, String q) {
+        return CatalogJson.toBooks(list("/api/search?by=" + by + "&q=" + encode(q)));
+    }
+
+    private String nextId(String kind) {
+        Response r = get("/api/next-id?kind=" + kind);
+        return r == null || r.status != 200 ? "" : Json.getString(Json.parseObject(r.body), "id");
+    }
+
+    // A change the server made but could not save fails as it would locally
+    private static boolean created(Response r) {
+        if (r != null && r.status == 503) throw new UncheckedIOException(new IOException(errorMessage(r)));
+        return r != null && r.status == 201;
+    }
+
+    private static String errorMessage(Response r) {
+        try { return Json.getString(Json.parseObject(r.body), "error"); }
+        catch (IllegalArgumentException e) { return "Server error " + r.status; }
+    }
+
+    private static String encode(String s) { return URLEncoder.encode(s, StandardCharsets.UTF_8); }
+}
+
+// =====================================================
+// LIST TABLE MODEL - Table rows read straight from a list
+// =====================================================
+// Cells are fetched from the list only when the table asks for them,
+// which is only for the rows on screen, so showing a catalog view costs
+// no copy of the catalog. Values stay raw (e.g. prices as numbers) and
+// are formatted by the renderer as they are painted.
+class ListTableModel<T> extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] names;
+    private final List<Function<T, ?>> cells;
+    private List<T> rows;
+    private boolean owned = false; // rows is our own ArrayList (see append)
+
+    @SafeVarargs
+    public ListTableModel(List<T> rows, String[] names, Function<T, ?>... cells) {
+        this.rows = rows;
+        this.names = names;
+        this.cells = new ArrayList<>(cells.length);
+        for (Function<T, ?> cell : cells) this.cells.add(cell); // copied so the varargs array is not kept
+    }
+
+    public int getRowCount() { return rows.size(); }
+    public int getColumnCount() { return names.length; }
+    public String getColumnName(int c) { return names[c]; }
+    public Object getValueAt(int r, int c) { return cells.get(c).apply(rows.get(r)); }
+
+    public T getRow(int r) { return rows.get(r); }
+    public List<T> getRows() { return rows; }
+
+    // Show a different list
+    public void setRows(List<T> rows) {
+        this.rows = rows;
+        owned = false;
+        fireTableDataChanged();
+    }
+
+    // Swap in a newer copy of the same list that may have grown at the end
+    // (e.g. the next catalog snapshot); only the new rows are announced
+    public void grow(List<T> newer) {
+        int before = rows.size();
+        rows = newer;
+        owned = false;
+        if (newer.size() > before) fireTableRowsInserted(before, newer.size() - 1);
+    }
+
+    // Add rows at the end (e.g. the next page of results)
+    public void append(List<T> more) {
+        if (more.isEmpty()) return;
+        if (!owned) {
+            rows = new ArrayList<>(rows);
+            owned = true;
+        }
+        int before = rows.size();
+        rows.addAll(more);
+        fireTableRowsInserted(before, rows.size() - 1);
+    }
+
+    public void rowChanged(int r) { fireTableRowsUpdated(r, r); }
+}
+
+// Book tables. When the rows are a catalog snapshot's list, cells are read
+// straight from its columns, so painting a cell makes no Book view. Price
+// and stock come out as cached text, so neither path boxes a number or
+// formats it again on every paint.
+class BookTableModel extends ListTableModel<Book> {
+    private static final long serialVersionUID = 1L;
+
+    static final String[] COLUMNS = {"Book ID", "Title", "Author", "Category", "Price", "Stock"};
+
+    public BookTableModel(List<Book> rows) {
+        super(rows, COLUMNS, Book::getBookId, Book::getTitle, Book::getAuthor, Book::getCategory,
+                b -> Theme.money(b.getPrice()), b -> Theme.count(b.getStockQuantity()));
+    }
+
+    public Object getValueAt(int r, int c) {
+        BookColumns.Snapshot snap = BookColumns.Snapshot.behind(getRows());
+        if (snap == null) return super.getValueAt(r, c);
+        switch (c) {
+            case 0: return snap.id(r);
+            case 1: return snap.title(r);
+            case 2: return snap.author(r);
+            case 3: return snap.category(r);
+            case 4: return Theme.money(snap.priceCents(r));
+            default: return Theme.count(snap.stock(r));
+        }
+    }
+}
+
+// =====================================================
+// THEME - Fonts, colors and borders shared by the whole UI
+// =====================================================
+// Everything here is made once and handed out again, so painting code
+// (table renderers, paintComponent) never allocates its own.
+class Theme {
+    static final String FAMILY = "Segoe UI";
+
+    static final Color DARK_BG = new Color(27, 38, 59);
+    static final Color BLUE = new Color(52, 152, 219);
+    static final Color GREEN = new Color(39, 174, 96);
+    static final Color ORANGE = new Color(243, 156, 18);
+    static final Color RED = new Color(231, 76, 60);
+    static final Color PURPLE = new Color(142, 68, 173);
+    static final Color LIGHT_BG = new Color(236, 240, 241);
+    static final Color WHITE = new Color(255, 255, 255);
+    static final Color TEXT = new Color(44, 62, 80);
+    static final Color GRAY_TEXT = new Color(149, 165, 166);
+    static final Color SIDEBAR = new Color(30, 39, 46);
+    static final Color SIDEBAR_HL = new Color(47, 54, 64);
+    static final Color HEADER_BLUE = new Color(41, 128, 185);
+
+    static final Color DEMO_BG = new Color(232, 245, 233);
+    static final Color DEMO_TITLE = new Color(27, 94, 32);
+    static final Color DEMO_TEXT = new Color(56, 142, 60);
+    static final Color PROFILE_BG = new Color(22, 29, 38);
+    static final Color SEPARATOR = new Color(60, 70, 80);
+    static final Color MENU_LABEL = new Color(120, 130, 140);
+    static final Color STRIPE = new Color(245, 248, 250);
+    static final Color SELECTION = new Color(232, 245, 253);
+    static final Color HEADER_EDGE = new Color(36, 113, 163);
+    static final Color FIELD_EDGE = new Color(200, 200, 200);
+    static final Color SIDEBAR_TEXT = new Color(200, 200, 200);
+    static final Color READ_ONLY = new Color(240, 240, 240);
+    static final Color GLOW = new Color(255, 255, 255, 40);
+
+    static final Border CELL = BorderFactory.createEmptyBorder(0, 15, 0, 15);
+    static final Border HEADER = BorderFactory.createCompoundBorder(
+            BorderFactory.createMatteBorder(0, 0, 2, 1, HEADER_EDGE),
+            BorderFactory.createEmptyBorder(10, 15, 10, 15));
+    static final Border FIELD = BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(FIELD_EDGE, 1, true),
+            BorderFactory.createEmptyBorder(5, 15, 5, 15));
+
+    private static final Map<Integer, Font> fonts = new ConcurrentHashMap<>();
+
+    // The UI font in the given style (Font.PLAIN / Font.BOLD) and size
+    static Font font(int style, int size) {
+        return fonts.computeIfAbsent(style << 8 | size, k -> new Font(FAMILY, style, size));
+    }
+
+    // Formatted prices, one per slot of a table indexed by the amount in
+    // cents. A new price takes over its slot, so the table never grows or
+    // needs clearing, and a hit allocates nothing. Entries are immutable,
+    // so any thread may read and replace them.
+    private static final int MONEY_BITS = 12; // 4096 slots
+    private static final MoneyText[] money = new MoneyText[1 << MONEY_BITS];
+
+    private static final class MoneyText {
+        final long cents;
+        final String text;
+
+        MoneyText(long cents, String text) {
+            this.cents = cents;
+            this.text = text;
         }
-        return String.format("CAT%03d", max + 1);
+    }
+
+    // "Rs. 1234.50"
+    static String money(double amount) { return money(DataManager.cents(amount)); }
+
+    static String money(long cents) {
+        int hash = (int) (cents ^ cents >>> 32) * 0x9E3779B9; // spread nearby prices over the table
+        int slot = hash >>> (32 - MONEY_BITS);
+        MoneyText m = money[slot];
+        if (m != null && m.cents == cents) return m.text;
+        m = new MoneyText(cents, String.format("Rs. %.2f", cents / 100.0));
+        money[slot] = m;
+        return m.text;
+    }
+
+    private static final String[] counts = new String[1024];
+
+    // Stock levels and other small counts as text, each made once
+    static String count(int n) {
+        if (n < 0 || n >= counts.length) return Integer.toString(n);
+        String text = counts[n];
+        if (text == null) counts[n] = text = Integer.toString(n);
+        return text;
     }
 }
 
@@ -349,7 +4879,7 @@ class RoundedButton extends JButton {
         setFocusPainted(false);
         setBorderPainted(false);
         setForeground(Color.WHITE);
-        setFont(new Font("Segoe UI", Font.BOLD, 14));
+        setFont(Theme.font(Font.BOLD, 14));
         setCursor(new Cursor(Cursor.HAND_CURSOR));
         setPreferredSize(new Dimension(180, 45));
 
@@ -408,33 +4938,41 @@ class RoundedPanel extends JPanel {
 // =====================================================
 public class CityBookshop extends JFrame {
 
-    // ---- COLOR CONSTANTS ----
-    static final Color DARK_BG = new Color(27, 38, 59);
-    static final Color BLUE = new Color(52, 152, 219);
-    static final Color GREEN = new Color(39, 174, 96);
-    static final Color ORANGE = new Color(243, 156, 18);
-    static final Color RED = new Color(231, 76, 60);
-    static final Color PURPLE = new Color(142, 68, 173);
-    static final Color LIGHT_BG = new Color(236, 240, 241);
-    static final Color WHITE = new Color(255, 255, 255);
-    static final Color TEXT = new Color(44, 62, 80);
-    static final Color GRAY_TEXT = new Color(149, 165, 166);
-    static final Color SIDEBAR = new Color(30, 39, 46);
-    static final Color SIDEBAR_HL = new Color(47, 54, 64);
-    static final Color HEADER_BLUE = new Color(41, 128, 185);
+    // Rows put in the search table at a time
+    static final int RESULT_PAGE = 200;
+    // Pause after the last keystroke before a live search runs
+    static final int LIVE_DELAY_MS = 250;
+    // Unopened pages are built in the background while the app is idle,
+    // one per tick, unless -Dbookshop.prefetchPages=false
+    static final boolean PREFETCH_PAGES = Boolean.parseBoolean(System.getProperty("bookshop.prefetchPages", "true"));
+    static final int PREFETCH_IDLE_MS = 1500;
 
-    private DataManager data;
+    private BookshopService data;
     private Person currentUser;
     private JPanel mainPanel;
     private CardLayout mainLayout;
-
-    // ---- CONSTRUCTOR ----
+    private ExecutorService searchExecutor; // live searches, see searchExecutor()
+    private final List<CatalogListener> pageListeners = new ArrayList<>(); // see onCatalogChange()
+    // Dashboard pages by name: how to build each, and the ones built so far
+    private final Map<String, Supplier<JPanel>> pageFactories = new LinkedHashMap<>();
+    private final Map<String, JPanel> pages = new HashMap<>();
+    private javax.swing.Timer prefetchTimer;
+
+    // ---- CONSTRUCTORS ----
     public CityBookshop() {
-        data = new DataManager();
+        this(new DataManager());
+    }
+
+    // Run against a local catalog or a shared server (RemoteDataManager)
+    public CityBookshop(BookshopService data) {
+        this.data = data;
 
         setTitle("City Bookshop Management System");
         setSize(1200, 750);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) { data.close(); }
+        });
         setLocationRelativeTo(null);
         setMinimumSize(new Dimension(1100, 700));
 
@@ -457,19 +4995,19 @@ public class CityBookshop extends JFrame {
             protected void paintComponent(Graphics g) {
                 Graphics2D g2 = (Graphics2D) g;
                 g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setPaint(new GradientPaint(0, 0, BLUE, 0, getHeight(), PURPLE));
+                g2.setPaint(new GradientPaint(0, 0, Theme.BLUE, 0, getHeight(), Theme.PURPLE));
                 g2.fillRect(0, 0, getWidth(), getHeight());
 
-                g2.setColor(new Color(255, 255, 255, 40));
+                g2.setColor(Theme.GLOW);
                 g2.fillOval(-50, -50, 300, 300);
                 g2.fillOval(100, getHeight() - 200, 250, 250);
 
                 g2.setColor(Color.WHITE);
-                g2.setFont(new Font("Segoe UI", Font.BOLD, 42));
+                g2.setFont(Theme.font(Font.BOLD, 42));
                 drawCentered(g2, "City Bookshop", getWidth(), getHeight() / 2 - 40);
-                g2.setFont(new Font("Segoe UI", Font.PLAIN, 18));
+                g2.setFont(Theme.font(Font.PLAIN, 18));
                 drawCentered(g2, "Management System", getWidth(), getHeight() / 2);
-                g2.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+                g2.setFont(Theme.font(Font.PLAIN, 14));
                 drawCentered(g2, "Automate your bookshop transactions", getWidth(), getHeight() / 2 + 40);
             }
         };
@@ -477,16 +5015,16 @@ public class CityBookshop extends JFrame {
 
         // ---- RIGHT SIDE (Login Form) ----
         JPanel right = new JPanel(new GridBagLayout());
-        right.setBackground(WHITE);
+        right.setBackground(Theme.WHITE);
 
         JPanel card = new JPanel();
-        card.setBackground(WHITE);
+        card.setBackground(Theme.WHITE);
         card.setLayout(new BoxLayout(card, BoxLayout.Y_AXIS));
         card.setBorder(BorderFactory.createEmptyBorder(40, 50, 40, 50));
 
         // Title
-        addCenteredLabel(card, "Welcome Back!", new Font("Segoe UI", Font.BOLD, 28), TEXT);
-        addCenteredLabel(card, "Sign in to your account", new Font("Segoe UI", Font.PLAIN, 14), GRAY_TEXT);
+        addCenteredLabel(card, "Welcome Back!", Theme.font(Font.BOLD, 28), Theme.TEXT);
+        addCenteredLabel(card, "Sign in to your account", Theme.font(Font.PLAIN, 14), Theme.GRAY_TEXT);
         card.add(Box.createVerticalStrut(30));
 
         // Username
@@ -503,34 +5041,34 @@ public class CityBookshop extends JFrame {
         card.add(Box.createVerticalStrut(25));
 
         // Login button
-        RoundedButton loginBtn = new RoundedButton("Sign In", BLUE);
+        RoundedButton loginBtn = new RoundedButton("Sign In", Theme.BLUE);
         loginBtn.setMaximumSize(new Dimension(300, 45));
         loginBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
         card.add(loginBtn);
         card.add(Box.createVerticalStrut(25));
 
         // Demo credentials box
-        JPanel demoBox = new RoundedPanel(15, new Color(232, 245, 233));
+        JPanel demoBox = new RoundedPanel(15, Theme.DEMO_BG);
         demoBox.setLayout(new BoxLayout(demoBox, BoxLayout.Y_AXIS));
         demoBox.setBorder(BorderFactory.createEmptyBorder(15, 20, 15, 20));
         demoBox.setMaximumSize(new Dimension(300, 120));
         demoBox.setAlignmentX(Component.CENTER_ALIGNMENT);
 
         JLabel demoTitle = new JLabel("Demo Credentials");
-        demoTitle.setFont(new Font("Segoe UI", Font.BOLD, 13));
-        demoTitle.setForeground(new Color(27, 94, 32));
+        demoTitle.setFont(Theme.font(Font.BOLD, 13));
+        demoTitle.setForeground(Theme.DEMO_TITLE);
         demoBox.add(demoTitle);
         demoBox.add(Box.createVerticalStrut(8));
 
         JLabel mgr = new JLabel("Manager  :  manager / manager123");
-        mgr.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        mgr.setForeground(new Color(56, 142, 60));
+        mgr.setFont(Theme.font(Font.PLAIN, 12));
+        mgr.setForeground(Theme.DEMO_TEXT);
         demoBox.add(mgr);
         demoBox.add(Box.createVerticalStrut(4));
 
         JLabel csh = new JLabel("Cashier    :  cashier / cashier123");
-        csh.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        csh.setForeground(new Color(56, 142, 60));
+        csh.setFont(Theme.font(Font.PLAIN, 12));
+        csh.setForeground(Theme.DEMO_TEXT);
         demoBox.add(csh);
 
         card.add(demoBox);
@@ -577,18 +5115,30 @@ public class CityBookshop extends JFrame {
         // Content area
         CardLayout contentLayout = new CardLayout();
         JPanel contentPanel = new JPanel(contentLayout);
-        contentPanel.setBackground(LIGHT_BG);
-
-        // Add all pages
-        contentPanel.add(buildHomePage(), "HOME");
-        contentPanel.add(buildViewBooksPage(), "VIEW_BOOKS");
-        contentPanel.add(buildSearchPage(), "SEARCH_BOOKS");
-
+        contentPanel.setBackground(Theme.LIGHT_BG);
+
+        // Pages are built the first time they are shown and kept after that.
+        // They are registered in the order a user of this role is likely to
+        // open them, which is also the order they are prefetched in.
+        pageFactories.clear();
+        pages.clear();
+        pageFactories.put("HOME", this::buildHomePage);
         if (currentUser instanceof Manager) {
-            contentPanel.add(buildAddBookPage(), "ADD_BOOK");
-            contentPanel.add(buildAddCategoryPage(), "ADD_CATEGORY");
-            contentPanel.add(buildCreateAccountPage(), "CREATE_ACCOUNT");
+            pageFactories.put("VIEW_BOOKS", this::buildViewBooksPage);
+            pageFactories.put("SEARCH_BOOKS", this::buildSearchPage);
+            pageFactories.put("ADD_BOOK", this::buildAddBookPage);
+            pageFactories.put("CATEGORY_SUMMARY", this::buildCategorySummaryPage);
+            pageFactories.put("ADD_CATEGORY", this::buildAddCategoryPage);
+            pageFactories.put("CREATE_ACCOUNT", this::buildCreateAccountPage);
+            pageFactories.put("POINT_OF_SALE", this::buildPointOfSalePage);
+        } else {
+            pageFactories.put("POINT_OF_SALE", this::buildPointOfSalePage);
+            pageFactories.put("SEARCH_BOOKS", this::buildSearchPage);
+            pageFactories.put("VIEW_BOOKS", this::buildViewBooksPage);
+            pageFactories.put("CATEGORY_SUMMARY", this::buildCategorySummaryPage);
         }
+        showPage(contentPanel, contentLayout, "HOME");
+        startPrefetch(contentPanel);
 
         // Sidebar
         JPanel sidebar = buildSidebar(contentPanel, contentLayout);
@@ -598,35 +5148,63 @@ public class CityBookshop extends JFrame {
         return panel;
     }
 
-    // ---- SIDEBAR ----
+    private void showPage(JPanel contentPanel, CardLayout contentLayout, String page) {
+        ensurePage(contentPanel, page);
+        contentLayout.show(contentPanel, page);
+    }
+
+    private void ensurePage(JPanel contentPanel, String page) {
+        if (pages.containsKey(page)) return;
+        JPanel built = pageFactories.get(page).get();
+        pages.put(page, built);
+        contentPanel.add(built, page);
+    }
+
+    // While nothing else is waiting on the event thread, build the next page
+    // nobody has opened yet; stops once every page exists
+    private void startPrefetch(JPanel contentPanel) {
+        if (!PREFETCH_PAGES) return;
+        prefetchTimer = new javax.swing.Timer(PREFETCH_IDLE_MS, e -> {
+            if (Toolkit.getDefaultToolkit().getSystemEventQueue().peekEvent() != null) return; // busy; try next tick
+            for (String page : pageFactories.keySet()) {
+                if (pages.containsKey(page)) continue;
+                ensurePage(contentPanel, page);
+                return;
+            }
+            ((javax.swing.Timer) e.getSource()).stop();
+        });
+        prefetchTimer.start();
+    }
+
+    // ---- Theme.SIDEBAR ----
     private JPanel buildSidebar(JPanel contentPanel, CardLayout contentLayout) {
         JPanel sidebar = new JPanel();
         sidebar.setLayout(new BoxLayout(sidebar, BoxLayout.Y_AXIS));
-        sidebar.setBackground(SIDEBAR);
+        sidebar.setBackground(Theme.SIDEBAR);
         sidebar.setPreferredSize(new Dimension(250, 0));
 
         // Profile section
         JPanel profile = new JPanel();
         profile.setLayout(new BoxLayout(profile, BoxLayout.Y_AXIS));
-        profile.setBackground(new Color(22, 29, 38));
+        profile.setBackground(Theme.PROFILE_BG);
         profile.setBorder(BorderFactory.createEmptyBorder(25, 20, 25, 20));
         profile.setMaximumSize(new Dimension(250, 130));
 
         JLabel shopName = new JLabel("City Bookshop");
-        shopName.setFont(new Font("Segoe UI", Font.BOLD, 18));
+        shopName.setFont(Theme.font(Font.BOLD, 18));
         shopName.setForeground(Color.WHITE);
         profile.add(shopName);
         profile.add(Box.createVerticalStrut(15));
 
         JLabel userName = new JLabel(currentUser.getFullName());
-        userName.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        userName.setForeground(new Color(200, 200, 200));
+        userName.setFont(Theme.font(Font.PLAIN, 14));
+        userName.setForeground(Theme.SIDEBAR_TEXT);
         profile.add(userName);
         profile.add(Box.createVerticalStrut(5));
 
         JLabel userRole = new JLabel("Role: " + currentUser.getRole());
-        userRole.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        userRole.setForeground(BLUE);
+        userRole.setFont(Theme.font(Font.PLAIN, 12));
+        userRole.setForeground(Theme.BLUE);
         profile.add(userRole);
 
         sidebar.add(profile);
@@ -638,6 +5216,8 @@ public class CityBookshop extends JFrame {
         addNavButton(sidebar, "Dashboard", "HOME", contentPanel, contentLayout);
         addNavButton(sidebar, "View All Books", "VIEW_BOOKS", contentPanel, contentLayout);
         addNavButton(sidebar, "Search Books", "SEARCH_BOOKS", contentPanel, contentLayout);
+        addNavButton(sidebar, "Category Summary", "CATEGORY_SUMMARY", contentPanel, contentLayout);
+        addNavButton(sidebar, "Point of Sale", "POINT_OF_SALE", contentPanel, contentLayout);
 
         if (currentUser instanceof Manager) {
             sidebar.add(Box.createVerticalStrut(10));
@@ -652,9 +5232,12 @@ public class CityBookshop extends JFrame {
 
         // Logout button
         JButton logout = createSidebarBtn("Logout");
-        logout.setForeground(RED);
+        logout.setForeground(Theme.RED);
         logout.addActionListener(e -> {
             currentUser = null;
+            if (prefetchTimer != null) prefetchTimer.stop();
+            for (CatalogListener l : pageListeners) data.removeCatalogListener(l);
+            pageListeners.clear();
             mainLayout.show(mainPanel, "LOGIN");
         });
         sidebar.add(logout);
@@ -667,13 +5250,7 @@ public class CityBookshop extends JFrame {
     private void addNavButton(JPanel sidebar, String text, String page,
                               JPanel contentPanel, CardLayout contentLayout) {
         JButton btn = createSidebarBtn(text);
-        btn.addActionListener(e -> {
-            // Refresh dynamic pages
-            if (page.equals("HOME")) contentPanel.add(buildHomePage(), "HOME");
-            if (page.equals("VIEW_BOOKS")) contentPanel.add(buildViewBooksPage(), "VIEW_BOOKS");
-            if (page.equals("SEARCH_BOOKS")) contentPanel.add(buildSearchPage(), "SEARCH_BOOKS");
-            contentLayout.show(contentPanel, page);
-        });
+        btn.addActionListener(e -> showPage(contentPanel, contentLayout, page));
         sidebar.add(btn);
     }
 
@@ -686,26 +5263,36 @@ public class CityBookshop extends JFrame {
         // Welcome header
         addPageTitle(page, "Welcome, " + currentUser.getFullName() + "!");
         JLabel sub = new JLabel("Here's your bookshop overview");
-        sub.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        sub.setForeground(GRAY_TEXT);
+        sub.setFont(Theme.font(Font.PLAIN, 14));
+        sub.setForeground(Theme.GRAY_TEXT);
         sub.setBorder(BorderFactory.createEmptyBorder(5, 0, 20, 0));
         sub.setAlignmentX(Component.LEFT_ALIGNMENT);
         page.add(sub);
 
-        // Stats cards
-        int totalBooks = data.getAllBooks().size();
-        int totalStock = 0;
-        for (Book b : data.getAllBooks()) totalStock += b.getStockQuantity();
+        // Stats cards, refreshed after each batch of changes
+        JLabel booksValue = new JLabel(), stockValue = new JLabel(), catValue = new JLabel(), userValue = new JLabel();
+        Function<List<CatalogEvent>, long[]> counts = events -> {
+            CatalogStats totals = data.getStats();
+            return new long[] {totals.getTitles(), totals.getUnits(), data.getAllCategories().size(), data.getAllUsers().size()};
+        };
+        Consumer<long[]> showCounts = c -> {
+            booksValue.setText(String.valueOf(c[0]));
+            stockValue.setText(String.valueOf(c[1]));
+            catValue.setText(String.valueOf(c[2]));
+            userValue.setText(String.valueOf(c[3]));
+        };
+        showCounts.accept(counts.apply(List.of()));
+        reloadOnChange(counts, showCounts);
 
         JPanel stats = new JPanel(new GridLayout(1, 4, 20, 0));
         stats.setOpaque(false);
         stats.setMaximumSize(new Dimension(Integer.MAX_VALUE, 130));
         stats.setAlignmentX(Component.LEFT_ALIGNMENT);
 
-        stats.add(buildStatCard("Total Books", String.valueOf(totalBooks), BLUE));
-        stats.add(buildStatCard("Total Stock", String.valueOf(totalStock), GREEN));
-        stats.add(buildStatCard("Categories", String.valueOf(data.getAllCategories().size()), ORANGE));
-        stats.add(buildStatCard("Users", String.valueOf(data.getAllUsers().size()), PURPLE));
+        stats.add(buildStatCard("Total Books", booksValue, Theme.BLUE));
+        stats.add(buildStatCard("Total Stock", stockValue, Theme.GREEN));
+        stats.add(buildStatCard("Categories", catValue, Theme.ORANGE));
+        stats.add(buildStatCard("Users", userValue, Theme.PURPLE));
         page.add(stats);
         page.add(Box.createVerticalStrut(20));
 
@@ -713,7 +5300,9 @@ public class CityBookshop extends JFrame {
         JPanel tableCard = createCard();
         tableCard.setLayout(new BorderLayout());
         addCardTitle(tableCard, "Recent Books in Stock");
-        tableCard.add(wrapTable(buildBookTable(data.getAllBooks())), BorderLayout.CENTER);
+        JTable table = buildBookTable(data.getAllBooks());
+        followBooks(table);
+        tableCard.add(wrapTable(table), BorderLayout.CENTER);
         tableCard.setAlignmentX(Component.LEFT_ALIGNMENT);
 
         // Make table card fill remaining space
@@ -727,8 +5316,8 @@ public class CityBookshop extends JFrame {
     }
 
     // ---- Stat Card ----
-    private JPanel buildStatCard(String title, String value, Color color) {
-        RoundedPanel card = new RoundedPanel(15, WHITE);
+    private JPanel buildStatCard(String title, JLabel v, Color color) {
+        RoundedPanel card = new RoundedPanel(15, Theme.WHITE);
         card.setLayout(new BoxLayout(card, BoxLayout.Y_AXIS));
         card.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
@@ -746,13 +5335,12 @@ public class CityBookshop extends JFrame {
         card.add(bar);
 
         JLabel t = new JLabel(title);
-        t.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        t.setForeground(GRAY_TEXT);
+        t.setFont(Theme.font(Font.PLAIN, 13));
+        t.setForeground(Theme.GRAY_TEXT);
         card.add(t);
         card.add(Box.createVerticalStrut(10));
 
-        JLabel v = new JLabel(value);
-        v.setFont(new Font("Segoe UI", Font.BOLD, 32));
+        v.setFont(Theme.font(Font.BOLD, 32));
         v.setForeground(color);
         card.add(v);
 
@@ -769,16 +5357,50 @@ public class CityBookshop extends JFrame {
         JPanel card = createCard();
         card.setLayout(new BorderLayout());
 
-        card.add(wrapTable(buildBookTable(data.getAllBooks())), BorderLayout.CENTER);
+        JTable table = buildBookTable(data.getAllBooks());
+        followBooks(table);
+        card.add(wrapTable(table), BorderLayout.CENTER);
 
         // Summary
-        int total = data.getAllBooks().size();
-        int stock = 0;
-        for (Book b : data.getAllBooks()) stock += b.getStockQuantity();
+        JLabel summary = new JLabel(totalsText(data.getStats()));
+        reloadOnChange(events -> data.getStats(), now -> summary.setText(totalsText(now)));
+        summary.setFont(Theme.font(Font.BOLD, 14));
+        summary.setForeground(Theme.BLUE);
+        summary.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
+        card.add(summary, BorderLayout.SOUTH);
+
+        card.setAlignmentX(Component.LEFT_ALIGNMENT);
+
+        JPanel wrapper = new JPanel(new BorderLayout());
+        wrapper.setOpaque(false);
+        wrapper.add(card, BorderLayout.CENTER);
+        wrapper.setAlignmentX(Component.LEFT_ALIGNMENT);
+        page.add(wrapper);
+
+        return page;
+    }
+
+    // ==========================================================
+    //                 CATEGORY SUMMARY PAGE
+    // ==========================================================
+    private JPanel buildCategorySummaryPage() {
+        JPanel page = createPage();
+        addPageTitle(page, "Category Summary");
+
+        JPanel card = createCard();
+        card.setLayout(new BorderLayout());
 
-        JLabel summary = new JLabel("Total: " + total + " books | " + stock + " items in stock");
-        summary.setFont(new Font("Segoe UI", Font.BOLD, 14));
-        summary.setForeground(BLUE);
+        CatalogStats totals = data.getStats();
+        JTable table = buildCategoryStatsTable(totals.getCategories());
+        card.add(wrapTable(table), BorderLayout.CENTER);
+
+        JLabel summary = new JLabel(totalsText(totals));
+        reloadOnChange(events -> data.getStats(), now -> {
+            updateCategoryStats(listModel(table), now.getCategories());
+            summary.setText(totalsText(now));
+        });
+        summary.setFont(Theme.font(Font.BOLD, 14));
+        summary.setForeground(Theme.BLUE);
         summary.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
         card.add(summary, BorderLayout.SOUTH);
 
@@ -793,6 +5415,160 @@ public class CityBookshop extends JFrame {
         return page;
     }
 
+    // ==========================================================
+    //                   POINT OF SALE PAGE
+    // ==========================================================
+    private JPanel buildPointOfSalePage() {
+        JPanel page = createPage();
+        addPageTitle(page, "Point of Sale");
+
+        JPanel card = createCard();
+        card.setLayout(new BorderLayout());
+
+        // Cart entry
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 15, 10));
+        controls.setOpaque(false);
+
+        controls.add(makeLabel("Book ID:", true));
+        JTextField idField = createTextField();
+        idField.setPreferredSize(new Dimension(150, 38));
+        controls.add(idField);
+
+        controls.add(makeLabel("Qty:", true));
+        JTextField qtyField = createTextField();
+        qtyField.setText("1");
+        qtyField.setPreferredSize(new Dimension(70, 38));
+        controls.add(qtyField);
+
+        RoundedButton addBtn = new RoundedButton("Add to Cart", Theme.BLUE);
+        addBtn.setPreferredSize(new Dimension(140, 38));
+        controls.add(addBtn);
+        card.add(controls, BorderLayout.NORTH);
+
+        // Cart table (BookID -> quantity, in the order added), and each book
+        // as looked up when it was added
+        Map<String, Integer> cart = new LinkedHashMap<>();
+        Map<String, Book> cartBooks = new HashMap<>();
+        DefaultTableModel cartModel = new DefaultTableModel(new String[]{"Book ID", "Title", "Qty", "Unit Price", "Amount"}, 0) {
+            public boolean isCellEditable(int r, int c) { return false; }
+        };
+        JPanel cartArea = new JPanel(new BorderLayout());
+        cartArea.setOpaque(false);
+        cartArea.setBorder(BorderFactory.createEmptyBorder(15, 0, 0, 0));
+        cartArea.add(wrapTable(styleTable(new JTable(cartModel))), BorderLayout.CENTER);
+        card.add(cartArea, BorderLayout.CENTER);
+
+        // Total and actions
+        JPanel footer = new JPanel(new FlowLayout(FlowLayout.LEFT, 15, 10));
+        footer.setOpaque(false);
+        JLabel totalLabel = new JLabel("Total: Rs. 0.00");
+        totalLabel.setFont(Theme.font(Font.BOLD, 16));
+        totalLabel.setForeground(Theme.BLUE);
+        footer.add(totalLabel);
+
+        RoundedButton checkoutBtn = new RoundedButton("Checkout", Theme.GREEN);
+        checkoutBtn.setPreferredSize(new Dimension(130, 38));
+        footer.add(checkoutBtn);
+
+        RoundedButton clearBtn = new RoundedButton("Clear Cart", Theme.GRAY_TEXT);
+        clearBtn.setPreferredSize(new Dimension(130, 38));
+        footer.add(clearBtn);
+        card.add(footer, BorderLayout.SOUTH);
+
+        // Redraw the cart from the map; no lookups, so nothing here waits on
+        // a server (checkout charges the current prices)
+        Runnable refreshCart = () -> {
+            cartModel.setRowCount(0);
+            long total = 0;
+            for (Map.Entry<String, Integer> e : cart.entrySet()) {
+                Book b = cartBooks.get(e.getKey());
+                long price = DataManager.cents(b.getPrice()), amount = price * e.getValue();
+                total += amount;
+                cartModel.addRow(new Object[]{b.getBookId(), b.getTitle(), e.getValue(),
+                        Theme.money(price), Theme.money(amount)});
+            }
+            totalLabel.setText("Total: " + Theme.money(total));
+        };
+
+        // Add action; the book and its live stock are looked up off the event thread
+        ActionListener doAdd = e -> {
+            String id = idField.getText().trim().toUpperCase();
+            int qty;
+            try {
+                qty = Integer.parseInt(qtyField.getText().trim());
+            } catch (NumberFormatException ex) {
+                showMsg("Please enter a valid quantity.", "Input Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (id.isEmpty() || qty <= 0) {
+                showMsg("Please enter a Book ID and a positive quantity.", "Validation Error", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            inBackground(() -> Map.entry(Optional.ofNullable(data.getBookById(id)), data.getLiveStock(id)), found -> {
+                Book b = found.getKey().orElse(null);
+                int left = found.getValue();
+                if (b == null || left < 0) {
+                    showMsg("Book " + id + " not found!", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                int wanted = cart.getOrDefault(id, 0) + qty;
+                if (wanted > left) {
+                    showMsg("Only " + left + " in stock for " + id + ".", "Not Enough Stock", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                cart.put(id, wanted);
+                cartBooks.put(id, b);
+                refreshCart.run();
+                idField.setText("");
+                qtyField.setText("1");
+                idField.requestFocusInWindow();
+            }, ex -> showMsg(ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+        };
+        addBtn.addActionListener(doAdd);
+        idField.addActionListener(doAdd);
+        qtyField.addActionListener(doAdd);
+
+        // Checkout action; stock is checked again here, as another till may have sold it meanwhile
+        checkoutBtn.addActionListener(e -> {
+            if (cart.isEmpty()) {
+                showMsg("The cart is empty.", "Checkout", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            Map<String, Integer> selling = new LinkedHashMap<>(cart);
+            checkoutBtn.setEnabled(false);
+            inBackground(() -> data.checkout(currentUser, selling), sale -> {
+                checkoutBtn.setEnabled(true);
+                StringBuilder receipt = new StringBuilder("Sale " + sale.getSaleId() + "\n\n");
+                for (SaleLine l : sale.getLines())
+                    receipt.append(l.getQuantity()).append(" x ").append(l.getTitle())
+                            .append("  ").append(Theme.money(l.getAmount())).append("\n");
+                receipt.append("\nTotal: ").append(Theme.money(sale.getTotal()));
+                cart.clear();
+                cartBooks.clear();
+                refreshCart.run();
+                showMsg(receipt.toString(), "Sale Complete", JOptionPane.INFORMATION_MESSAGE);
+            }, ex -> {
+                checkoutBtn.setEnabled(true);
+                showMsg(ex.getMessage(), "Checkout Failed", JOptionPane.ERROR_MESSAGE);
+            });
+        });
+
+        clearBtn.addActionListener(e -> {
+            cart.clear();
+            cartBooks.clear();
+            refreshCart.run();
+        });
+
+        card.setAlignmentX(Component.LEFT_ALIGNMENT);
+        JPanel wrapper = new JPanel(new BorderLayout());
+        wrapper.setOpaque(false);
+        wrapper.add(card, BorderLayout.CENTER);
+        wrapper.setAlignmentX(Component.LEFT_ALIGNMENT);
+        page.add(wrapper);
+
+        return page;
+    }
+
     // ==========================================================
     //                   SEARCH BOOKS PAGE
     // ==========================================================
@@ -809,9 +5585,9 @@ public class CityBookshop extends JFrame {
 
         controls.add(makeLabel("Search By:", true));
 
-        String[] options = {"Book Name", "Category", "Max Price", "Min Stock"};
+        String[] options = {"Book Name", "Category", "Max Price", "Min Stock", "Fuzzy"};
         JComboBox<String> typeBox = new JComboBox<>(options);
-        typeBox.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        typeBox.setFont(Theme.font(Font.PLAIN, 14));
         typeBox.setPreferredSize(new Dimension(150, 38));
         controls.add(typeBox);
 
@@ -820,15 +5596,66 @@ public class CityBookshop extends JFrame {
         searchField.setMaximumSize(new Dimension(250, 38));
         controls.add(searchField);
 
-        RoundedButton searchBtn = new RoundedButton("Search", BLUE);
+        RoundedButton searchBtn = new RoundedButton("Search", Theme.BLUE);
         searchBtn.setPreferredSize(new Dimension(120, 38));
         controls.add(searchBtn);
 
-        RoundedButton resetBtn = new RoundedButton("Reset", GRAY_TEXT);
+        RoundedButton resetBtn = new RoundedButton("Reset", Theme.GRAY_TEXT);
         resetBtn.setPreferredSize(new Dimension(110, 38));
         controls.add(resetBtn);
 
-        card.add(controls, BorderLayout.NORTH);
+        JCheckBox liveBox = new JCheckBox("Search as you type");
+        liveBox.setFont(Theme.font(Font.PLAIN, 14));
+        liveBox.setForeground(Theme.TEXT);
+        liveBox.setOpaque(false);
+        controls.add(liveBox);
+
+        // Multi-field filter: every field that is filled in must match
+        JPanel filters = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
+        filters.setOpaque(false);
+        filters.add(makeLabel("Filter:", true));
+
+        filters.add(makeLabel("Title", false));
+        JTextField titleFilter = createTextField();
+        titleFilter.setPreferredSize(new Dimension(150, 38));
+        filters.add(titleFilter);
+
+        JComboBox<String> catFilter = new JComboBox<>();
+        catFilter.setFont(Theme.font(Font.PLAIN, 14));
+        catFilter.setPreferredSize(new Dimension(140, 38));
+        catFilter.addItem("Any Category");
+        for (Category c : data.getAllCategories()) catFilter.addItem(c.getCategoryName());
+        onCatalogChange(events -> {
+            for (CatalogEvent ev : events) if (ev.getCategory() != null) catFilter.addItem(ev.getCategory().getCategoryName());
+        });
+        filters.add(catFilter);
+
+        filters.add(makeLabel("Price", false));
+        JTextField minPriceFilter = createTextField();
+        minPriceFilter.setPreferredSize(new Dimension(80, 38));
+        filters.add(minPriceFilter);
+        filters.add(makeLabel("to", false));
+        JTextField maxPriceFilter = createTextField();
+        maxPriceFilter.setPreferredSize(new Dimension(80, 38));
+        filters.add(maxPriceFilter);
+
+        filters.add(makeLabel("Min Stock", false));
+        JTextField stockFilter = createTextField();
+        stockFilter.setPreferredSize(new Dimension(70, 38));
+        filters.add(stockFilter);
+
+        RoundedButton filterBtn = new RoundedButton("Apply Filter", Theme.GREEN);
+        filterBtn.setPreferredSize(new Dimension(130, 38));
+        filters.add(filterBtn);
+
+        JPanel north = new JPanel();
+        north.setOpaque(false);
+        north.setLayout(new BoxLayout(north, BoxLayout.Y_AXIS));
+        controls.setAlignmentX(Component.LEFT_ALIGNMENT);
+        filters.setAlignmentX(Component.LEFT_ALIGNMENT);
+        north.add(controls);
+        north.add(filters);
+        card.add(north, BorderLayout.NORTH);
 
         // Results area
         JPanel resultsArea = new JPanel(new BorderLayout());
@@ -836,23 +5663,49 @@ public class CityBookshop extends JFrame {
         resultsArea.setBorder(BorderFactory.createEmptyBorder(15, 0, 0, 0));
 
         JLabel resultsTitle = new JLabel("Search Results:");
-        resultsTitle.setFont(new Font("Segoe UI", Font.BOLD, 16));
-        resultsTitle.setForeground(TEXT);
+        resultsTitle.setFont(Theme.font(Font.BOLD, 16));
+        resultsTitle.setForeground(Theme.TEXT);
         resultsTitle.setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
         resultsArea.add(resultsTitle, BorderLayout.NORTH);
 
-        JTable table = buildBookTable(data.getAllBooks());
-        JScrollPane scroll = wrapTable(table);
+        JScrollPane scroll = wrapTable(buildBookTable(new ArrayList<>()));
         resultsArea.add(scroll, BorderLayout.CENTER);
 
-        JLabel countLabel = new JLabel("Showing " + data.getAllBooks().size() + " results");
-        countLabel.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        countLabel.setForeground(GRAY_TEXT);
-        countLabel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
-        resultsArea.add(countLabel, BorderLayout.SOUTH);
+        JLabel countLabel = new JLabel();
+        countLabel.setFont(Theme.font(Font.PLAIN, 13));
+        countLabel.setForeground(Theme.GRAY_TEXT);
+
+        RoundedButton moreBtn = new RoundedButton("Show More", Theme.BLUE);
+        moreBtn.setPreferredSize(new Dimension(120, 32));
+
+        JPanel footer = new JPanel(new BorderLayout());
+        footer.setOpaque(false);
+        footer.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
+        footer.add(countLabel, BorderLayout.WEST);
+        footer.add(moreBtn, BorderLayout.EAST);
+        resultsArea.add(footer, BorderLayout.SOUTH);
 
         card.add(resultsArea, BorderLayout.CENTER);
 
+        // The table holds one page of rows at a time; "Show More" appends the
+        // next page from the same source instead of rebuilding the table
+        AtomicReference<IntFunction<ResultPage>> source = new AtomicReference<>();
+        AtomicReference<String> described = new AtomicReference<>("");
+        ListTableModel<Book> resultsModel = listModel((JTable) scroll.getViewport().getView());
+        Runnable showMore = () -> {
+            ResultPage p = source.get().apply(resultsModel.getRowCount());
+            resultsModel.append(p.getBooks());
+            countLabel.setText(showingText(p.getEnd(), p.getTotal()) + described.get());
+            moreBtn.setVisible(p.hasMore());
+        };
+        Consumer<IntFunction<ResultPage>> showResults = fetch -> {
+            source.set(fetch);
+            resultsModel.setRows(Collections.emptyList());
+            showMore.run();
+        };
+        moreBtn.addActionListener(e -> showMore.run());
+        showResults.accept(offset -> ResultPage.of(data.getAllBooks(), offset, RESULT_PAGE));
+
         // Search action
         ActionListener doSearch = e -> {
             String query = searchField.getText().trim();
@@ -862,17 +5715,9 @@ public class CityBookshop extends JFrame {
             }
             try {
                 String type = (String) typeBox.getSelectedItem();
-                List<Book> results;
-
-                switch (type) {
-                    case "Category": results = data.searchByCategory(query); break;
-                    case "Max Price": results = data.searchByPrice(Double.parseDouble(query)); break;
-                    case "Min Stock": results = data.searchByStock(Integer.parseInt(query)); break;
-                    default: results = data.searchByName(query); break;
-                }
-
-                scroll.setViewportView(buildBookTable(results));
-                countLabel.setText("Showing " + results.size() + " results for \"" + query + "\"");
+                List<Book> results = simpleSearch(type, query); // cached by DataManager, so paging it is free
+                described.set(" for \"" + query + "\"");
+                showResults.accept(offset -> ResultPage.of(results, offset, RESULT_PAGE));
                 resultsTitle.setText("Search Results - " + type + ": " + query);
             } catch (NumberFormatException ex) {
                 showMsg("Please enter a valid number.", "Invalid Input", JOptionPane.ERROR_MESSAGE);
@@ -882,10 +5727,97 @@ public class CityBookshop extends JFrame {
         searchBtn.addActionListener(doSearch);
         searchField.addActionListener(doSearch);
 
+        // Live search: each keystroke restarts a short timer; when it fires the
+        // query runs on the search thread and any older one is cancelled. Only
+        // the newest query's results reach the table. A longer Book Name query
+        // narrows the previous results instead of searching the whole catalog.
+        AtomicInteger liveGeneration = new AtomicInteger();
+        AtomicReference<Future<?>> liveTask = new AtomicReference<>();
+        AtomicReference<String> narrowQuery = new AtomicReference<>();
+        AtomicReference<List<Book>> narrowResults = new AtomicReference<>();
+        long[] narrowVersion = {0};
+
+        javax.swing.Timer liveTimer = new javax.swing.Timer(LIVE_DELAY_MS, e -> {
+            String query = searchField.getText().trim();
+            String type = (String) typeBox.getSelectedItem();
+            int generation = liveGeneration.incrementAndGet();
+            Future<?> older = liveTask.get();
+            if (older != null) older.cancel(true);
+            if (query.isEmpty()) {
+                described.set("");
+                showResults.accept(offset -> ResultPage.of(data.getAllBooks(), offset, RESULT_PAGE));
+                resultsTitle.setText("Search Results:");
+                return;
+            }
+            String fromQuery = narrowQuery.get();
+            List<Book> fromResults = narrowResults.get();
+            long fromVersion = narrowVersion[0];
+
+            liveTask.set(searchExecutor().submit(() -> {
+                long version = data.getCatalogVersion();
+                List<Book> results;
+                try {
+                    results = type.equals("Book Name") ? data.refineText(fromResults, fromQuery, fromVersion, query)
+                            : simpleSearch(type, query);
+                } catch (NumberFormatException ex) {
+                    return; // half-typed number; wait for more keys
+                }
+                if (Thread.currentThread().isInterrupted()) return;
+                SwingUtilities.invokeLater(() -> {
+                    if (generation != liveGeneration.get()) return; // a newer query is on its way
+                    boolean text = type.equals("Book Name");
+                    narrowQuery.set(text ? query : null);
+                    narrowResults.set(text ? results : null);
+                    narrowVersion[0] = version;
+                    described.set(" for \"" + query + "\"");
+                    showResults.accept(offset -> ResultPage.of(results, offset, RESULT_PAGE));
+                    resultsTitle.setText("Search Results - " + type + ": " + query);
+                });
+            }));
+        });
+        liveTimer.setRepeats(false);
+
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { if (liveBox.isSelected()) liveTimer.restart(); }
+            public void removeUpdate(DocumentEvent e) { if (liveBox.isSelected()) liveTimer.restart(); }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        typeBox.addActionListener(e -> { if (liveBox.isSelected()) liveTimer.restart(); });
+        liveBox.addActionListener(e -> { if (liveBox.isSelected()) liveTimer.restart(); });
+
+        // Filter action
+        ActionListener doFilter = e -> {
+            try {
+                BookQuery q = new BookQuery().text(titleFilter.getText());
+                if (catFilter.getSelectedIndex() > 0) q.category((String) catFilter.getSelectedItem());
+                if (!minPriceFilter.getText().trim().isEmpty()) q.minPrice(Double.parseDouble(minPriceFilter.getText().trim()));
+                if (!maxPriceFilter.getText().trim().isEmpty()) q.maxPrice(Double.parseDouble(maxPriceFilter.getText().trim()));
+                if (!stockFilter.getText().trim().isEmpty()) q.minStock(Integer.parseInt(stockFilter.getText().trim()));
+                if (q.isEmpty()) {
+                    showMsg("Please fill in at least one filter field.", "Filter", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+
+                described.set(" for " + q);
+                showResults.accept(offset -> data.page(q, offset, RESULT_PAGE));
+                resultsTitle.setText("Search Results - Filter");
+            } catch (NumberFormatException ex) {
+                showMsg("Please enter valid numbers for Price and Stock.", "Invalid Input", JOptionPane.ERROR_MESSAGE);
+            }
+        };
+
+        filterBtn.addActionListener(doFilter);
+        titleFilter.addActionListener(doFilter);
+        minPriceFilter.addActionListener(doFilter);
+        maxPriceFilter.addActionListener(doFilter);
+        stockFilter.addActionListener(doFilter);
+
         resetBtn.addActionListener(e -> {
             searchField.setText("");
-            scroll.setViewportView(buildBookTable(data.getAllBooks()));
-            countLabel.setText("Showing " + data.getAllBooks().size() + " results");
+            titleFilter.setText(""); catFilter.setSelectedIndex(0);
+            minPriceFilter.setText(""); maxPriceFilter.setText(""); stockFilter.setText("");
+            described.set("");
+            showResults.accept(offset -> ResultPage.of(data.getAllBooks(), offset, RESULT_PAGE));
             resultsTitle.setText("Search Results:");
         });
 
@@ -906,7 +5838,7 @@ public class CityBookshop extends JFrame {
         JPanel page = createPage();
         addPageTitle(page, "Add New Book");
 
-        RoundedPanel form = new RoundedPanel(15, WHITE);
+        RoundedPanel form = new RoundedPanel(15, Theme.WHITE);
         form.setLayout(new GridBagLayout());
         form.setBorder(BorderFactory.createEmptyBorder(30, 40, 30, 40));
 
@@ -918,14 +5850,17 @@ public class CityBookshop extends JFrame {
         JTextField idField = createTextField();
         idField.setText(data.generateBookId());
         idField.setEditable(false);
-        idField.setBackground(new Color(240, 240, 240));
+        idField.setBackground(Theme.READ_ONLY);
 
         JTextField titleField = createTextField();
         JTextField authorField = createTextField();
 
         JComboBox<String> catBox = new JComboBox<>();
-        catBox.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        catBox.setFont(Theme.font(Font.PLAIN, 14));
         for (Category c : data.getAllCategories()) catBox.addItem(c.getCategoryName());
+        onCatalogChange(events -> {
+            for (CatalogEvent ev : events) if (ev.getCategory() != null) catBox.addItem(ev.getCategory().getCategoryName());
+        });
 
         JTextField priceField = createTextField();
         JTextField stockField = createTextField();
@@ -942,8 +5877,8 @@ public class CityBookshop extends JFrame {
         JPanel btns = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 10));
         btns.setOpaque(false);
 
-        RoundedButton addBtn = new RoundedButton("Add Book", GREEN);
-        RoundedButton clearBtn = new RoundedButton("Clear", GRAY_TEXT);
+        RoundedButton addBtn = new RoundedButton("Add Book", Theme.GREEN);
+        RoundedButton clearBtn = new RoundedButton("Clear", Theme.GRAY_TEXT);
         btns.add(addBtn);
         btns.add(clearBtn);
 
@@ -972,7 +5907,11 @@ public class CityBookshop extends JFrame {
                     return;
                 }
 
-                data.addBook(new Book(idField.getText(), t, a, (String) catBox.getSelectedItem(), price, stock));
+                if (!data.addBook(new Book(idField.getText(), t, a, (String) catBox.getSelectedItem(), price, stock))) {
+                    showMsg("Book ID " + idField.getText() + " already exists!", "Error", JOptionPane.ERROR_MESSAGE);
+                    idField.setText(data.generateBookId());
+                    return;
+                }
                 showMsg("Book \"" + t + "\" added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
 
                 idField.setText(data.generateBookId());
@@ -980,6 +5919,9 @@ public class CityBookshop extends JFrame {
                 priceField.setText(""); stockField.setText("");
             } catch (NumberFormatException ex) {
                 showMsg("Please enter valid numbers for Price and Stock!", "Input Error", JOptionPane.ERROR_MESSAGE);
+            } catch (UncheckedIOException ex) {
+                showMsg("The book was added but could not be saved:\n" + ex.getMessage(), "Save Error", JOptionPane.ERROR_MESSAGE);
+                idField.setText(data.generateBookId());
             }
         });
 
@@ -1015,7 +5957,7 @@ public class CityBookshop extends JFrame {
         content.setAlignmentX(Component.LEFT_ALIGNMENT);
 
         // ---- Left: Form ----
-        RoundedPanel form = new RoundedPanel(15, WHITE);
+        RoundedPanel form = new RoundedPanel(15, Theme.WHITE);
         form.setLayout(new GridBagLayout());
         form.setBorder(BorderFactory.createEmptyBorder(30, 30, 30, 30));
         GridBagConstraints g = new GridBagConstraints();
@@ -1025,7 +5967,7 @@ public class CityBookshop extends JFrame {
         JTextField idField = createTextField();
         idField.setText(data.generateCategoryId());
         idField.setEditable(false);
-        idField.setBackground(new Color(240, 240, 240));
+        idField.setBackground(Theme.READ_ONLY);
 
         JTextField nameField = createTextField();
         JTextField descField = createTextField();
@@ -1036,8 +5978,8 @@ public class CityBookshop extends JFrame {
 
         JPanel btns = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 10));
         btns.setOpaque(false);
-        RoundedButton addBtn = new RoundedButton("Add Category", ORANGE);
-        RoundedButton clearBtn = new RoundedButton("Clear", GRAY_TEXT);
+        RoundedButton addBtn = new RoundedButton("Add Category", Theme.ORANGE);
+        RoundedButton clearBtn = new RoundedButton("Clear", Theme.GRAY_TEXT);
         btns.add(addBtn);
         btns.add(clearBtn);
 
@@ -1046,15 +5988,15 @@ public class CityBookshop extends JFrame {
         form.add(btns, g);
 
         // ---- Right: Existing categories table ----
-        RoundedPanel listCard = new RoundedPanel(15, WHITE);
+        RoundedPanel listCard = new RoundedPanel(15, Theme.WHITE);
         listCard.setLayout(new BorderLayout());
         listCard.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
         addCardTitle(listCard, "Existing Categories");
 
-        String[] cols = {"ID", "Name", "Description"};
-        JScrollPane scroll = wrapTable(buildCategoryTable());
-        listCard.add(scroll, BorderLayout.CENTER);
+        JTable catTable = buildCategoryTable();
+        listCard.add(wrapTable(catTable), BorderLayout.CENTER);
+        reloadOnChange(events -> data.getAllCategories(), list -> CityBookshop.<Category>listModel(catTable).grow(list));
 
         // Actions
         addBtn.addActionListener(e -> {
@@ -1064,11 +6006,20 @@ public class CityBookshop extends JFrame {
                 showMsg("Please fill all fields!", "Validation Error", JOptionPane.WARNING_MESSAGE);
                 return;
             }
-            data.addCategory(new Category(idField.getText(), name, desc));
+            try {
+                if (!data.addCategory(new Category(idField.getText(), name, desc))) {
+                    showMsg("Category ID " + idField.getText() + " already exists!", "Error", JOptionPane.ERROR_MESSAGE);
+                    idField.setText(data.generateCategoryId());
+                    return;
+                }
+            } catch (UncheckedIOException ex) {
+                showMsg("The category was added but could not be saved:\n" + ex.getMessage(), "Save Error", JOptionPane.ERROR_MESSAGE);
+                idField.setText(data.generateCategoryId());
+                return;
+            }
             showMsg("Category \"" + name + "\" added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             idField.setText(data.generateCategoryId());
             nameField.setText(""); descField.setText("");
-            scroll.setViewportView(buildCategoryTable());
         });
 
         clearBtn.addActionListener(e -> {
@@ -1100,7 +6051,7 @@ public class CityBookshop extends JFrame {
         content.setAlignmentX(Component.LEFT_ALIGNMENT);
 
         // ---- Left: Form ----
-        RoundedPanel form = new RoundedPanel(15, WHITE);
+        RoundedPanel form = new RoundedPanel(15, Theme.WHITE);
         form.setLayout(new GridBagLayout());
         form.setBorder(BorderFactory.createEmptyBorder(30, 30, 30, 30));
         GridBagConstraints g = new GridBagConstraints();
@@ -1114,7 +6065,7 @@ public class CityBookshop extends JFrame {
         styleTextField(passField);
 
         JComboBox<String> roleBox = new JComboBox<>(new String[]{"Cashier", "Manager"});
-        roleBox.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        roleBox.setFont(Theme.font(Font.PLAIN, 14));
 
         addRow(form, g, 0, "Full Name:", nameField);
         addRow(form, g, 1, "Username:", userField);
@@ -1123,8 +6074,8 @@ public class CityBookshop extends JFrame {
 
         JPanel btns = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 10));
         btns.setOpaque(false);
-        RoundedButton createBtn = new RoundedButton("Create Account", PURPLE);
-        RoundedButton clearBtn = new RoundedButton("Clear", GRAY_TEXT);
+        RoundedButton createBtn = new RoundedButton("Create Account", Theme.PURPLE);
+        RoundedButton clearBtn = new RoundedButton("Clear", Theme.GRAY_TEXT);
         btns.add(createBtn);
         btns.add(clearBtn);
 
@@ -1133,14 +6084,15 @@ public class CityBookshop extends JFrame {
         form.add(btns, g);
 
         // ---- Right: Existing users table ----
-        RoundedPanel listCard = new RoundedPanel(15, WHITE);
+        RoundedPanel listCard = new RoundedPanel(15, Theme.WHITE);
         listCard.setLayout(new BorderLayout());
         listCard.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
         addCardTitle(listCard, "Existing Users");
 
-        JScrollPane scroll = wrapTable(buildUserTable());
-        listCard.add(scroll, BorderLayout.CENTER);
+        JTable userTable = buildUserTable();
+        listCard.add(wrapTable(userTable), BorderLayout.CENTER);
+        reloadOnChange(events -> data.getAllUsers(), list -> CityBookshop.<Person>listModel(userTable).grow(list));
 
         // Actions
         createBtn.addActionListener(e -> {
@@ -1162,12 +6114,15 @@ public class CityBookshop extends JFrame {
             Person newUser = role.equals("Manager") ?
                     new Manager(user, pass, name) : new Cashier(user, pass, name);
 
-            if (data.addUser(newUser)) {
-                showMsg("Account for \"" + name + "\" (" + role + ") created!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                nameField.setText(""); userField.setText(""); passField.setText("");
-                scroll.setViewportView(buildUserTable());
-            } else {
-                showMsg("Username \"" + user + "\" already exists!", "Error", JOptionPane.ERROR_MESSAGE);
+            try {
+                if (data.addUser(newUser)) {
+                    showMsg("Account for \"" + name + "\" (" + role + ") created!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                    nameField.setText(""); userField.setText(""); passField.setText("");
+                } else {
+                    showMsg("Username \"" + user + "\" already exists!", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            } catch (UncheckedIOException ex) {
+                showMsg("The account was created but could not be saved:\n" + ex.getMessage(), "Save Error", JOptionPane.ERROR_MESSAGE);
             }
         });
 
@@ -1191,96 +6146,261 @@ public class CityBookshop extends JFrame {
     //              TABLE BUILDING METHODS
     // ==========================================================
 
-    // Build a styled table for books
-    private JTable buildBookTable(List<Book> books) {
-        String[] cols = {"Book ID", "Title", "Author", "Category", "Price", "Stock"};
-        Object[][] rows = new Object[books.size()][6];
-        for (int i = 0; i < books.size(); i++) {
-            Book b = books.get(i);
-            rows[i] = new Object[]{b.getBookId(), b.getTitle(), b.getAuthor(),
-                    b.getCategory(), String.format("Rs. %.2f", b.getPrice()), b.getStockQuantity()};
+    // Build a styled table for books; it reads from the list, which is not copied
+    private static JTable buildBookTable(List<Book> books) {
+        return styleTable(new JTable(new BookTableModel(books)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ListTableModel<T> listModel(JTable table) { return (ListTableModel<T>) table.getModel(); }
+
+    // Run the search picked in the "Search By" box
+    private List<Book> simpleSearch(String type, String query) {
+        switch (type) {
+            case "Category": return data.searchByCategory(query);
+            case "Max Price": return data.searchByPrice(Double.parseDouble(query));
+            case "Min Stock": return data.searchByStock(Integer.parseInt(query));
+            case "Fuzzy": return data.searchFuzzy(query);
+            default: return data.searchByName(query);
         }
-        return styleTable(new JTable(new DefaultTableModel(rows, cols) {
-            public boolean isCellEditable(int r, int c) { return false; }
-        }));
+    }
+
+    // One daemon thread for live searches, so they run off the EDT and in order
+    private ExecutorService searchExecutor() {
+        if (searchExecutor == null) {
+            searchExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "live-search");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return searchExecutor;
+    }
+
+    // "Showing 42 results" or, part way through, "Showing 200 of 5000 results"
+    private static String showingText(int shown, int total) {
+        return shown < total ? "Showing " + shown + " of " + total + " results" : "Showing " + total + " results";
     }
 
     // Build a styled table for categories
     private JTable buildCategoryTable() {
         String[] cols = {"ID", "Name", "Description"};
-        List<Category> cats = data.getAllCategories();
-        Object[][] rows = new Object[cats.size()][3];
-        for (int i = 0; i < cats.size(); i++) {
-            Category c = cats.get(i);
-            rows[i] = new Object[]{c.getCategoryId(), c.getCategoryName(), c.getDescription()};
-        }
-        return styleTable(new JTable(new DefaultTableModel(rows, cols) {
-            public boolean isCellEditable(int r, int c) { return false; }
-        }));
+        return styleTable(new JTable(new ListTableModel<>(data.getAllCategories(), cols,
+                Category::getCategoryId, Category::getCategoryName, Category::getDescription)));
+    }
+
+    // Build a styled table of per-category totals
+    private JTable buildCategoryStatsTable(List<CatalogStats.CategoryStats> cats) {
+        String[] cols = {"Category", "Books", "Units", "Inventory Value", "Min Price", "Max Price"};
+        JTable table = styleTable(new JTable(new ListTableModel<CatalogStats.CategoryStats>(cats, cols,
+                CatalogStats.CategoryStats::getName, CatalogStats.CategoryStats::getTitles, CatalogStats.CategoryStats::getUnits,
+                CatalogStats.CategoryStats::getValue,
+                c -> c.getTitles() == 0 ? "-" : (Object) c.getMinPrice(),
+                c -> c.getTitles() == 0 ? "-" : (Object) c.getMaxPrice())));
+        for (int c = 3; c <= 5; c++) table.getColumnModel().getColumn(c).setCellRenderer(new MoneyRenderer());
+        return table;
+    }
+
+    // Categories only ever get added, so the rows keep their places; the few
+    // rows there are are all redrawn
+    private void updateCategoryStats(ListTableModel<CatalogStats.CategoryStats> model, List<CatalogStats.CategoryStats> cats) {
+        int before = model.getRowCount();
+        model.grow(cats);
+        for (int i = 0; i < Math.min(before, cats.size()); i++) model.rowChanged(i);
+    }
+
+    // "Total: 10 books | 268 items in stock | Rs. 420150.00 inventory value"
+    private static String totalsText(CatalogStats totals) {
+        return "Total: " + totals.getTitles() + " books | " + totals.getUnits() + " items in stock | "
+                + Theme.money(totals.getValue()) + " inventory value";
     }
 
     // Build a styled table for users
     private JTable buildUserTable() {
         String[] cols = {"Username", "Full Name", "Role"};
-        List<Person> users = data.getAllUsers();
-        Object[][] rows = new Object[users.size()][3];
-        for (int i = 0; i < users.size(); i++) {
-            Person p = users.get(i);
-            rows[i] = new Object[]{p.getUsername(), p.getFullName(), p.getRole()};
+        return styleTable(new JTable(new ListTableModel<>(data.getAllUsers(), cols,
+                Person::getUsername, Person::getFullName, Person::getRole)));
+    }
+
+    // ----- LIVE UPDATES -----
+    // Listen for catalog changes while this dashboard is shown; dropped at logout
+    private void onCatalogChange(CatalogListener l) {
+        data.addCatalogListener(l);
+        pageListeners.add(l);
+    }
+
+    // Run 'work' off the event thread (against a server it is a round trip),
+    // then hand its result to 'then', or what it threw to 'failed', on the
+    // event thread
+    private static <T> void inBackground(Supplier<T> work, Consumer<T> then, Consumer<RuntimeException> failed) {
+        new SwingWorker<T, Void>() {
+            protected T doInBackground() { return work.get(); }
+
+            protected void done() {
+                try { then.accept(get()); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) failed.accept((RuntimeException) e.getCause());
+                    else System.out.println("Error in background task: " + e.getCause());
+                }
+            }
+        }.execute();
+    }
+
+    // Fetch fresh data after each batch of changes without holding up the
+    // event thread: 'load' runs on a SwingWorker (against a server it is a
+    // round trip), then 'show' gets the result on the event thread
+    private <T> void reloadOnChange(Function<List<CatalogEvent>, T> load, Consumer<T> show) {
+        onCatalogChange(new Reloader<>(load, show));
+    }
+
+    // Batches that arrive while a load is running wait, then go out
+    // together in one more load, so a busy catalog costs one fetch at a
+    // time rather than one per batch
+    private static class Reloader<T> implements CatalogListener {
+        private final Function<List<CatalogEvent>, T> load;
+        private final Consumer<T> show;
+        private final List<CatalogEvent> waiting = new ArrayList<>(); // event thread only
+        private boolean running = false;
+
+        Reloader(Function<List<CatalogEvent>, T> load, Consumer<T> show) {
+            this.load = load;
+            this.show = show;
         }
-        return styleTable(new JTable(new DefaultTableModel(rows, cols) {
-            public boolean isCellEditable(int r, int c) { return false; }
-        }));
+
+        public void catalogChanged(List<CatalogEvent> events) {
+            waiting.addAll(events);
+            if (!running) start();
+        }
+
+        private void start() {
+            List<CatalogEvent> events = new ArrayList<>(waiting);
+            waiting.clear();
+            running = true;
+            new SwingWorker<T, Void>() {
+                protected T doInBackground() { return load.apply(events); }
+
+                protected void done() {
+                    running = false;
+                    try { show.accept(get()); }
+                    catch (InterruptedException | ExecutionException e) { System.out.println("Error refreshing: " + e.getMessage()); }
+                    if (!waiting.isEmpty()) start();
+                }
+            }.execute();
+        }
+    }
+
+    // Keep a whole-catalog book table in step: it moves to the newest
+    // catalog list, announcing added books as inserted rows and changed ones
+    // as updated rows (a book's row is its position in the catalog, so
+    // indexOf gives it without scanning the list).
+    private void followBooks(JTable table) {
+        ListTableModel<Book> model = listModel(table);
+        reloadOnChange(events -> {
+            Set<String> changed = new HashSet<>();
+            for (CatalogEvent e : events)
+                if (e.getType() == CatalogEvent.Type.STOCK_CHANGED || e.getType() == CatalogEvent.Type.PRICE_CHANGED)
+                    changed.add(e.getKey());
+            List<Book> books = data.getAllBooks();
+            List<Integer> rows = new ArrayList<>(changed.size());
+            for (String key : changed) {
+                int row = data.indexOf(key);
+                if (row >= 0) rows.add(row);
+            }
+            return Map.entry(books, rows);
+        }, fresh -> {
+            int before = model.getRowCount();
+            model.grow(fresh.getKey());
+            for (int row : fresh.getValue()) if (row < before) model.rowChanged(row);
+        });
     }
 
     // Apply styling to any table
-    private JTable styleTable(JTable table) {
-        table.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+    private static JTable styleTable(JTable table) {
+        table.setFont(Theme.font(Font.PLAIN, 13));
         table.setRowHeight(40);
         table.setShowGrid(false);
         table.setIntercellSpacing(new Dimension(0, 0));
-        table.setSelectionBackground(new Color(232, 245, 253));
-        table.setSelectionForeground(TEXT);
-        table.setBackground(WHITE);
+        table.setSelectionBackground(Theme.SELECTION);
+        table.setSelectionForeground(Theme.TEXT);
+        table.setBackground(Theme.WHITE);
 
         // Header style - bright blue with white text
-        table.getTableHeader().setDefaultRenderer(new DefaultTableCellRenderer() {
-            public Component getTableCellRendererComponent(JTable t, Object val,
-                    boolean sel, boolean focus, int row, int col) {
-                JLabel lbl = new JLabel(val != null ? val.toString() : "");
-                lbl.setFont(new Font("Segoe UI", Font.BOLD, 14));
-                lbl.setForeground(Color.WHITE);
-                lbl.setBackground(HEADER_BLUE);
-                lbl.setOpaque(true);
-                lbl.setHorizontalAlignment(SwingConstants.LEFT);
-                lbl.setBorder(BorderFactory.createCompoundBorder(
-                        BorderFactory.createMatteBorder(0, 0, 2, 1, new Color(36, 113, 163)),
-                        BorderFactory.createEmptyBorder(10, 15, 10, 15)));
-                return lbl;
-            }
-        });
+        table.getTableHeader().setDefaultRenderer(new HeaderRenderer());
         table.getTableHeader().setPreferredSize(new Dimension(0, 48));
         table.getTableHeader().setReorderingAllowed(false);
 
         // Alternating row colors
-        table.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
-            public Component getTableCellRendererComponent(JTable t, Object val,
-                    boolean sel, boolean focus, int row, int col) {
-                Component c = super.getTableCellRendererComponent(t, val, sel, focus, row, col);
-                if (!sel) c.setBackground(row % 2 == 0 ? WHITE : new Color(245, 248, 250));
-                setBorder(BorderFactory.createEmptyBorder(0, 15, 0, 15));
-                return c;
-            }
-        });
+        table.setDefaultRenderer(Object.class, new StripedRenderer());
 
         return table;
     }
 
+    // Base for the table renderers. A label fires a "text" change each time a
+    // cell is painted, and only the look and feel's HTML support listens;
+    // these cells never hold HTML, so that event is not made at all.
+    private static class PlainTextRenderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        protected void firePropertyChange(String name, Object oldValue, Object newValue) {
+            if (!"text".equals(name)) super.firePropertyChange(name, oldValue, newValue);
+        }
+    }
+
+    // Styled once when made; each paint only swaps the text
+    private static class HeaderRenderer extends PlainTextRenderer {
+        private static final long serialVersionUID = 1L;
+
+        HeaderRenderer() {
+            setFont(Theme.font(Font.BOLD, 14));
+            setForeground(Color.WHITE);
+            setBackground(Theme.HEADER_BLUE);
+            setOpaque(true);
+            setHorizontalAlignment(SwingConstants.LEFT);
+            setBorder(Theme.HEADER);
+        }
+
+        public Component getTableCellRendererComponent(JTable t, Object val,
+                boolean sel, boolean focus, int row, int col) {
+            setValue(val);
+            return this;
+        }
+    }
+
+    // The border is set once; the default renderer would swap in its focus
+    // border on every cell, and each swap allocates
+    private static class StripedRenderer extends PlainTextRenderer {
+        private static final long serialVersionUID = 1L;
+
+        StripedRenderer() {
+            setBorder(Theme.CELL);
+        }
+
+        public Component getTableCellRendererComponent(JTable t, Object val,
+                boolean sel, boolean focus, int row, int col) {
+            setForeground(sel ? t.getSelectionForeground() : t.getForeground());
+            setBackground(sel ? t.getSelectionBackground() : row % 2 == 0 ? Theme.WHITE : Theme.STRIPE);
+            setFont(t.getFont());
+            setValue(val);
+            return this;
+        }
+    }
+
+    // Amounts stay numbers in the model and are formatted only when a cell is painted
+    private static class MoneyRenderer extends StripedRenderer {
+        private static final long serialVersionUID = 1L;
+
+        protected void setValue(Object value) {
+            setText(value instanceof Number ? Theme.money(((Number) value).doubleValue())
+                    : value == null ? "" : value.toString());
+        }
+    }
+
     // Wrap table in scroll pane
     private JScrollPane wrapTable(JTable table) {
         JScrollPane sp = new JScrollPane(table);
         sp.setBorder(BorderFactory.createEmptyBorder());
-        sp.getViewport().setBackground(WHITE);
+        sp.getViewport().setBackground(Theme.WHITE);
         return sp;
     }
 
@@ -1292,14 +6412,14 @@ public class CityBookshop extends JFrame {
     private JPanel createPage() {
         JPanel p = new JPanel();
         p.setLayout(new BoxLayout(p, BoxLayout.Y_AXIS));
-        p.setBackground(LIGHT_BG);
+        p.setBackground(Theme.LIGHT_BG);
         p.setBorder(BorderFactory.createEmptyBorder(30, 30, 30, 30));
         return p;
     }
 
     // Create a white card panel
     private JPanel createCard() {
-        RoundedPanel card = new RoundedPanel(15, WHITE);
+        RoundedPanel card = new RoundedPanel(15, Theme.WHITE);
         card.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
         return card;
     }
@@ -1307,8 +6427,8 @@ public class CityBookshop extends JFrame {
     // Add a page title
     private void addPageTitle(JPanel page, String text) {
         JLabel title = new JLabel(text);
-        title.setFont(new Font("Segoe UI", Font.BOLD, 26));
-        title.setForeground(TEXT);
+        title.setFont(Theme.font(Font.BOLD, 26));
+        title.setForeground(Theme.TEXT);
         title.setBorder(BorderFactory.createEmptyBorder(0, 0, 20, 0));
         title.setAlignmentX(Component.LEFT_ALIGNMENT);
         page.add(title);
@@ -1317,8 +6437,8 @@ public class CityBookshop extends JFrame {
     // Add a card title
     private void addCardTitle(JPanel card, String text) {
         JLabel title = new JLabel(text);
-        title.setFont(new Font("Segoe UI", Font.BOLD, 18));
-        title.setForeground(TEXT);
+        title.setFont(Theme.font(Font.BOLD, 18));
+        title.setForeground(Theme.TEXT);
         title.setBorder(BorderFactory.createEmptyBorder(0, 0, 15, 0));
         card.add(title, BorderLayout.NORTH);
     }
@@ -1332,12 +6452,10 @@ public class CityBookshop extends JFrame {
 
     // Apply styling to text field
     private void styleTextField(JTextField field) {
-        field.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        field.setFont(Theme.font(Font.PLAIN, 14));
         field.setPreferredSize(new Dimension(300, 38));
         field.setMaximumSize(new Dimension(300, 42));
-        field.setBorder(BorderFactory.createCompoundBorder(
-                BorderFactory.createLineBorder(new Color(200, 200, 200), 1, true),
-                BorderFactory.createEmptyBorder(5, 15, 5, 15)));
+        field.setBorder(Theme.FIELD);
     }
 
     // Add a form row (label + field)
@@ -1351,8 +6469,8 @@ public class CityBookshop extends JFrame {
     // Create a label
     private JLabel makeLabel(String text, boolean bold) {
         JLabel lbl = new JLabel(text);
-        lbl.setFont(new Font("Segoe UI", bold ? Font.BOLD : Font.PLAIN, 14));
-        lbl.setForeground(TEXT);
+        lbl.setFont(Theme.font(bold ? Font.BOLD : Font.PLAIN, 14));
+        lbl.setForeground(Theme.TEXT);
         return lbl;
     }
 
@@ -1368,8 +6486,8 @@ public class CityBookshop extends JFrame {
     // Add a field label
     private void addFieldLabel(JPanel panel, String text) {
         JLabel lbl = new JLabel("  " + text);
-        lbl.setFont(new Font("Segoe UI", Font.BOLD, 13));
-        lbl.setForeground(TEXT);
+        lbl.setFont(Theme.font(Font.BOLD, 13));
+        lbl.setForeground(Theme.TEXT);
         lbl.setAlignmentX(Component.CENTER_ALIGNMENT);
         lbl.setMaximumSize(new Dimension(300, 20));
         panel.add(lbl);
@@ -1379,9 +6497,9 @@ public class CityBookshop extends JFrame {
     // Create a sidebar button
     private JButton createSidebarBtn(String text) {
         JButton btn = new JButton(text);
-        btn.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        btn.setForeground(new Color(200, 200, 200));
-        btn.setBackground(SIDEBAR);
+        btn.setFont(Theme.font(Font.PLAIN, 14));
+        btn.setForeground(Theme.SIDEBAR_TEXT);
+        btn.setBackground(Theme.SIDEBAR);
         btn.setBorderPainted(false);
         btn.setFocusPainted(false);
         btn.setContentAreaFilled(false);
@@ -1392,13 +6510,13 @@ public class CityBookshop extends JFrame {
 
         btn.addMouseListener(new MouseAdapter() {
             public void mouseEntered(MouseEvent e) {
-                btn.setBackground(SIDEBAR_HL);
+                btn.setBackground(Theme.SIDEBAR_HL);
                 btn.setContentAreaFilled(true);
                 btn.setForeground(Color.WHITE);
             }
             public void mouseExited(MouseEvent e) {
                 btn.setContentAreaFilled(false);
-                btn.setForeground(new Color(200, 200, 200));
+                btn.setForeground(Theme.SIDEBAR_TEXT);
             }
         });
         return btn;
@@ -1408,7 +6526,7 @@ public class CityBookshop extends JFrame {
     private void addSeparator(JPanel sidebar) {
         JSeparator sep = new JSeparator();
         sep.setMaximumSize(new Dimension(250, 1));
-        sep.setForeground(new Color(60, 70, 80));
+        sep.setForeground(Theme.SEPARATOR);
         sidebar.add(sep);
         sidebar.add(Box.createVerticalStrut(10));
     }
@@ -1416,8 +6534,8 @@ public class CityBookshop extends JFrame {
     // Add a menu section label to sidebar
     private void addMenuLabel(JPanel sidebar, String text) {
         JLabel lbl = new JLabel("   " + text);
-        lbl.setFont(new Font("Segoe UI", Font.BOLD, 11));
-        lbl.setForeground(new Color(120, 130, 140));
+        lbl.setFont(Theme.font(Font.BOLD, 11));
+        lbl.setForeground(Theme.MENU_LABEL);
         sidebar.add(lbl);
         sidebar.add(Box.createVerticalStrut(5));
     }
@@ -1430,9 +6548,9 @@ public class CityBookshop extends JFrame {
 
     // Show styled message dialog
     private void showMsg(String msg, String title, int type) {
-        UIManager.put("OptionPane.background", WHITE);
-        UIManager.put("Panel.background", WHITE);
-        UIManager.put("OptionPane.messageFont", new Font("Segoe UI", Font.PLAIN, 14));
+        UIManager.put("OptionPane.background", Theme.WHITE);
+        UIManager.put("Panel.background", Theme.WHITE);
+        UIManager.put("OptionPane.messageFont", Theme.font(Font.PLAIN, 14));
         JOptionPane.showMessageDialog(this, msg, title, type);
     }
 
@@ -1440,10 +6558,166 @@ public class CityBookshop extends JFrame {
     //                     MAIN METHOD
     // ==========================================================
     public static void main(String[] args) {
+        // --server [port]: headless catalog server; --connect URL: till that uses one
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? Integer.parseInt(args[1]) : BookshopServer.DEFAULT_PORT);
+            return;
+        }
+        // --stress [seconds]: concurrency check on a throwaway catalog (see ContentionStress)
+        if (args.length > 0 && args[0].equals("--stress")) {
+            ContentionStress.main(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+            return;
+        }
+        // --bench-update [writers] [seconds]: versioned edits against the locked update path
+        if (args.length > 0 && args[0].equals("--bench-update")) {
+            UpdateBench.main(args.length > 1 ? Integer.parseInt(args[1]) : 4, args.length > 2 ? Integer.parseInt(args[2]) : 5);
+            return;
+        }
+        // --bench-render [passes]: garbage made by painting a large book table
+        if (args.length > 0 && args[0].equals("--bench-render")) {
+            benchRender(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+            return;
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) { e.printStackTrace(); }
 
-        SwingUtilities.invokeLater(() -> new CityBookshop());
+        String serverUrl = args.length > 1 && args[0].equals("--connect") ? args[1] : null;
+        SwingUtilities.invokeLater(() -> {
+            if (serverUrl == null) new CityBookshop();
+            else new CityBookshop(new RemoteDataManager(serverUrl));
+        });
+    }
+
+    // ----- RENDER BENCHMARK -----
+    // Scrolls through a 50,000-book table the way painting does: every cell
+    // and, once per screenful, every header cell goes through its renderer.
+    // Reports bytes allocated per cell and garbage collections per pass for
+    // the book table as it was before the renderer rework ("before"), and
+    // for today's table over the catalog snapshot and over a plain list of
+    // books. Uses a throwaway catalog in a temporary directory, priced like
+    // a shop (a few hundred distinct prices).
+    private static void benchRender(int passes) {
+        try {
+            System.setProperty("bookshop.dataDir", Files.createTempDirectory("bookshop-bench").toString());
+        } catch (IOException e) {
+            System.out.println("Error running benchmark: " + e.getMessage());
+            return;
+        }
+        DataManager data = new DataManager(200);
+        Random seed = new Random(42);
+        for (int i = 0; data.getAllBooks().size() < 50000; i++)
+            data.addBook(new Book(String.format("BK%06d", 100000 + i), "Title " + i, "Author " + seed.nextInt(5000),
+                    "Category " + (i % 12), 495 + seed.nextInt(400) * 5, seed.nextInt(200)));
+        double before = benchRender("before", baselineBookTable(new ArrayList<>(data.getAllBooks())), passes);
+        double snapshot = benchRender("snapshot", buildBookTable(data.getAllBooks()), passes);
+        double list = benchRender("list", buildBookTable(new ArrayList<>(data.getAllBooks())), passes);
+        if (before >= 0)
+            System.out.printf("bytes/cell: before %.1f, snapshot %.1f, list %.1f%n", before, snapshot, list);
+        data.close();
+    }
+
+    // Average bytes allocated per cell over the measured passes, or -1 if
+    // the JVM cannot count allocations
+    private static double benchRender(String name, JTable table, int passes) {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation counting is not available on this JVM");
+            return -1;
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        TableCellRenderer header = table.getTableHeader().getDefaultRenderer();
+        int rows = table.getRowCount(), cols = table.getColumnCount(), screen = 20;
+        long total = 0;
+        for (int pass = 0; pass <= passes; pass++) { // pass 0 warms up the JIT and the caches
+            long bytes = mx.getCurrentThreadAllocatedBytes(), gcs = gcCount(), start = System.nanoTime();
+            for (int r = 0; r < rows; r++) {
+                if (r % screen == 0)
+                    for (int c = 0; c < cols; c++) header.getTableCellRendererComponent(table, table.getColumnName(c), false, false, -1, c);
+                for (int c = 0; c < cols; c++) table.prepareRenderer(table.getCellRenderer(r, c), r, c);
+            }
+            if (pass == 0) continue;
+            bytes = mx.getCurrentThreadAllocatedBytes() - bytes;
+            total += bytes;
+            System.out.printf("%s pass %d: %d cells, %.1f bytes/cell, %d GCs, %d ms%n", name, pass, (long) rows * cols,
+                    (double) bytes / ((long) rows * cols), gcCount() - gcs, (System.nanoTime() - start) / 1_000_000);
+        }
+        return passes > 0 ? (double) total / passes / ((long) rows * cols) : 0;
+    }
+
+    // The book table as it was before the renderer rework, kept as the
+    // benchmark's point of comparison: boxed cells from a list model, a new
+    // label, font and border for every header cell, and a new stripe colour
+    // and border and a String.format price for every body cell
+    private static JTable baselineBookTable(List<Book> books) {
+        String[] cols = {"Book ID", "Title", "Author", "Category", "Price", "Stock"};
+        JTable table = styleTable(new JTable(new ListTableModel<>(books, cols,
+                Book::getBookId, Book::getTitle, Book::getAuthor, Book::getCategory, Book::getPrice, Book::getStockQuantity)));
+        table.getTableHeader().setDefaultRenderer(new DefaultTableCellRenderer() {
+            private static final long serialVersionUID = 1L;
+
+            public Component getTableCellRendererComponent(JTable t, Object val,
+                    boolean sel, boolean focus, int row, int col) {
+                JLabel lbl = new JLabel(val != null ? val.toString() : "");
+                lbl.setFont(new Font("Segoe UI", Font.BOLD, 14));
+                lbl.setForeground(Color.WHITE);
+                lbl.setBackground(Theme.HEADER_BLUE);
+                lbl.setOpaque(true);
+                lbl.setHorizontalAlignment(SwingConstants.LEFT);
+                lbl.setBorder(BorderFactory.createCompoundBorder(
+                        BorderFactory.createMatteBorder(0, 0, 2, 1, new Color(36, 113, 163)),
+                        BorderFactory.createEmptyBorder(10, 15, 10, 15)));
+                return lbl;
+            }
+        });
+        table.setDefaultRenderer(Object.class, new BaselineStripedRenderer());
+        table.getColumnModel().getColumn(4).setCellRenderer(new BaselineMoneyRenderer());
+        return table;
+    }
+
+    private static class BaselineStripedRenderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        public Component getTableCellRendererComponent(JTable t, Object val,
+                boolean sel, boolean focus, int row, int col) {
+            Component c = super.getTableCellRendererComponent(t, val, sel, focus, row, col);
+            if (!sel) c.setBackground(row % 2 == 0 ? Theme.WHITE : new Color(245, 248, 250));
+            setBorder(BorderFactory.createEmptyBorder(0, 15, 0, 15));
+            return c;
+        }
+    }
+
+    private static class BaselineMoneyRenderer extends BaselineStripedRenderer {
+        private static final long serialVersionUID = 1L;
+
+        protected void setValue(Object value) {
+            setText(value instanceof Number ? String.format("Rs. %.2f", ((Number) value).doubleValue())
+                    : value == null ? "" : value.toString());
+        }
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans())
+            n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    // The server's threads keep the JVM running; a shutdown hook saves the data
+    private static void runServer(int port) {
+        DataManager data = new DataManager();
+        try {
+            BookshopServer server = new BookshopServer(data, port);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                data.close();
+            }));
+            System.out.println("Catalog server listening on port " + server.getPort());
+        } catch (IOException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+            data.close();
+        }
     }
 }
\ No newline at end of file